@@ -0,0 +1,129 @@
+package co.stevets.music.utils;
+
+import android.media.MediaDescription;
+import android.media.session.MediaSession;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs random edits on a {@link PlayingQueue} and on an {@link ArrayList} side by side, and
+ * checks after every edit that the queue holds the same items in the same order and finds
+ * every item at its index.
+ */
+public class PlayingQueueTest extends TestCase {
+
+    private static final int SEEDS = 20;
+    private static final int STEPS = 500;
+
+    // Few songs, so songs are often on the queue more than once
+    private static final int SONGS = 8;
+
+    public void testMatchesArrayList() {
+        for (int seed = 0; seed < SEEDS; seed++) {
+            Random random = new Random(seed);
+            PlayingQueue queue = new PlayingQueue();
+            List<MediaSession.QueueItem> expected = new ArrayList<>();
+            for (int step = 0; step < STEPS; step++) {
+                edit(random, queue, expected);
+                check("seed " + seed + " step " + step, queue, expected);
+            }
+        }
+    }
+
+    public void testKeepsQueueIdsOfItemsGiven() {
+        List<MediaSession.QueueItem> items = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            items.add(new MediaSession.QueueItem(newSong(i), i * 2));
+        }
+        PlayingQueue queue = new PlayingQueue(items);
+        check("initial", queue, items);
+
+        // New items get IDs above the ones given
+        MediaSession.QueueItem item = queue.add(0, newSong(0));
+        assertTrue(item.getQueueId() > 18);
+        assertEquals(0, queue.indexOfQueueId(item.getQueueId()));
+    }
+
+    private static void edit(Random random, PlayingQueue queue,
+                             List<MediaSession.QueueItem> expected) {
+        int size = expected.size();
+        int op = size == 0 ? 0 : random.nextInt(6);
+        switch (op) {
+            case 0:
+            case 1: {
+                int index = random.nextInt(size + 1);
+                expected.add(index, queue.add(index, newSong(random.nextInt(SONGS))));
+                break;
+            }
+            case 2: {
+                int index = random.nextInt(size);
+                assertSame(expected.remove(index), queue.remove(index));
+                break;
+            }
+            case 3: {
+                int from = random.nextInt(size);
+                int to = random.nextInt(size);
+                queue.move(from, to);
+                expected.add(to, expected.remove(from));
+                break;
+            }
+            case 4: {
+                // Reorder the end of the queue, like reranking does
+                int from = random.nextInt(size + 1);
+                List<MediaSession.QueueItem> tail =
+                        new ArrayList<>(expected.subList(from, size));
+                Collections.shuffle(tail, random);
+                queue.replaceFrom(from, tail);
+                expected.subList(from, size).clear();
+                expected.addAll(tail);
+                break;
+            }
+            default: {
+                int index = random.nextInt(size);
+                MediaSession.QueueItem item = new MediaSession.QueueItem(
+                        newSong(random.nextInt(SONGS)), expected.get(index).getQueueId());
+                assertSame(expected.set(index, item), queue.set(index, item));
+                break;
+            }
+        }
+    }
+
+    private static void check(String message, PlayingQueue queue,
+                              List<MediaSession.QueueItem> expected) {
+        assertEquals(message, expected.size(), queue.size());
+        Iterator<MediaSession.QueueItem> iterator = queue.iterator();
+        for (int i = 0; i < expected.size(); i++) {
+            MediaSession.QueueItem item = expected.get(i);
+            assertSame(message, item, queue.get(i));
+            assertSame(message, item, iterator.next());
+            assertEquals(message, i, queue.indexOfQueueId(item.getQueueId()));
+            assertEquals(message, firstIndexOf(expected, item.getDescription().getMediaId()),
+                    queue.indexOfMediaId(item.getDescription().getMediaId()));
+        }
+        assertFalse(message, iterator.hasNext());
+        for (int song = 0; song < SONGS; song++) {
+            assertEquals(message, firstIndexOf(expected, "song" + song),
+                    queue.indexOfMediaId("song" + song));
+        }
+    }
+
+    private static int firstIndexOf(List<MediaSession.QueueItem> items, String mediaId) {
+        for (int i = 0; i < items.size(); i++) {
+            if (mediaId.equals(items.get(i).getDescription().getMediaId())) {
+                return i;
+            }
+        }
+        return PlayingQueue.NOT_FOUND;
+    }
+
+    private static MediaDescription newSong(int song) {
+        return new MediaDescription.Builder().setMediaId("song" + song).build();
+    }
+
+}
@@ -55,6 +55,13 @@ public class MusicActivity extends Activity implements NowPlayingFragment.OnNowP
                     .replace(R.id.container, new LoadFragment())
                     .add(new SongDownloadFragment(), DOWNLOAD)
                     .commit();
+        } else if (!provider.hasNetworkCatalog()
+                && getFragmentManager().findFragmentByTag(DOWNLOAD) == null) {
+            // Play the songs from the previous session while the catalog is refreshed
+            showNowPlaying();
+            getFragmentManager().beginTransaction()
+                    .add(new SongDownloadFragment(), DOWNLOAD)
+                    .commit();
         }
     }
 
@@ -108,7 +115,16 @@ public class MusicActivity extends Activity implements NowPlayingFragment.OnNowP
             return;
         }
 
-        // Switch to the now playing fragment
+        showNowPlaying();
+    }
+
+    /**
+     * Switch to the now playing fragment, unless it is already showing.
+     */
+    private void showNowPlaying() {
+        if (getFragmentManager().findFragmentById(R.id.container) instanceof NowPlayingFragment) {
+            return;
+        }
         getFragmentManager().beginTransaction()
                 .replace(R.id.container, new NowPlayingFragment())
                 .commitAllowingStateLoss();
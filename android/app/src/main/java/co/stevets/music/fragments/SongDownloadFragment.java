@@ -3,21 +3,22 @@ package co.stevets.music.fragments;
 import android.app.Activity;
 import android.app.Fragment;
 import android.os.Bundle;
+import android.util.Log;
 
-import java.util.List;
-
-import co.stevets.music.models.Song;
-import co.stevets.music.network.ApiClient;
+import co.stevets.music.network.CatalogLoader;
 import co.stevets.music.utils.Common;
-import retrofit.Callback;
-import retrofit.RetrofitError;
-import retrofit.client.Response;
 
 
-public class SongDownloadFragment extends Fragment {
+public class SongDownloadFragment extends Fragment implements CatalogLoader.Listener {
+
+    private static final String TAG = "SongDownloadFragment";
 
-    private int mNextPage = 1;
-    private boolean mIsDownloadInProgress = false;
+    // Number of pages to download from each Hype Machine page
+    private static final int POPULAR_PAGES = 5;
+    private static final int LATEST_PAGES = 5;
+
+    // True once the listener has been told that songs can be played
+    private boolean mNotified = false;
 
     private Common mApp;
 
@@ -31,7 +32,7 @@ public class SongDownloadFragment extends Fragment {
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         mApp = (Common) getActivity().getApplicationContext();
-        downloadData(mNextPage);
+        downloadData();
     }
 
     @Override
@@ -51,46 +52,58 @@ public class SongDownloadFragment extends Fragment {
         mListener = null;
     }
 
+    @Override
+    public void onDestroy() {
+        mApp.getCatalogLoader().removeListener(this);
+        super.onDestroy();
+    }
 
-    private void downloadData(final int pageNumber) {
-        if (!mIsDownloadInProgress) {
-            mIsDownloadInProgress = true;
-
-            ApiClient.getMusicApiClient().getPopular(pageNumber, new Callback<List<Song>>() {
-
-                @Override
-                public void success(List<Song> songs, Response response) {
-                    consumeApiData(songs);
-                }
 
-                @Override
-                public void failure(RetrofitError error) {
-                    consumeApiData(null);
-                }
-            });
+    private void downloadData() {
+        CatalogLoader loader = mApp.getCatalogLoader();
+        loader.addListener(this);
+        if (!loader.isLoading()) {
+            // Popular pages are requested first so the first page lands as soon as possible
+            loader.loadMore(CatalogLoader.POPULAR, POPULAR_PAGES);
+            loader.loadMore(CatalogLoader.LATEST, LATEST_PAGES);
         }
     }
 
-
-    private void consumeApiData(List<Song> songs) {
-        if (songs != null) {
-            // Add the found songs to our media catalog
-            mApp.getProvider().addMediaCatalog("popular", songs);
-
-            // Keep track of what page to download next
-            mNextPage++;
+    @Override
+    public void onPageLoaded(String page, int number, int songs) {
+        Log.d(TAG, "onPageLoaded. page=" + page + "/" + number + " songs=" + songs);
+        // Start playing as soon as the first page is in the catalog
+        if (songs > 0 && mApp.getProvider().hasNetworkCatalog()) {
+            notifyListener();
         }
+    }
 
-        mIsDownloadInProgress = false;
+    @Override
+    public void onIdle() {
+        saveSnapshot();
+        // Let the activity know even if nothing could be downloaded
+        notifyListener();
+    }
 
-        // For now only download the first page
-        if (mNextPage <= 1) {
-            downloadData(mNextPage);
-        } else {
+    private void notifyListener() {
+        if (!mNotified && mListener != null) {
+            mNotified = true;
             mListener.onSongsDownloaded();
         }
     }
 
+    /**
+     * Save the downloaded catalog on a separate thread so it can be used on the next start.
+     */
+    private void saveSnapshot() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mApp.getProvider().saveSnapshot(mApp.getCatalogSnapshotFile());
+            }
+        }).start();
+    }
+
 
     public interface OnSongsDownloadedListener {
         public void onSongsDownloaded();
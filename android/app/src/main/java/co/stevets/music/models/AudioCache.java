@@ -0,0 +1,537 @@
+package co.stevets.music.models;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Directory of {@link CachedAudio} files, one per song, keyed by the song's media ID, that
+ * stays under a byte budget. When the budget is exceeded, the least recently used songs are
+ * deleted; songs that are pinned, e.g. favourites, and songs being read or written are never
+ * deleted. Songs that may be deleted are kept in least recently used order in a linked hash
+ * map, so using, pinning and evicting a song take O(1).
+ *
+ * The order of the songs, their sizes and the pins are appended to a journal, which is
+ * replayed when the cache is created, so they survive the process; the journal is rewritten
+ * from the songs cached when it gets long.
+ *
+ * Thread safe. The journal is replayed and written and evicted songs are deleted on a
+ * background thread, and songs are loaded outside the lock of the cache, so no file is touched
+ * while it is held: the threads streaming songs take it for every write. Creating the cache
+ * doesn't wait for the journal; reading the cache does, and pins set meanwhile are applied
+ * once it is replayed.
+ */
+public class AudioCache {
+
+    private static final String TAG = "AudioCache";
+
+    private static final String JOURNAL = "journal";
+    private static final String JOURNAL_TEMP = "journal.tmp";
+
+    // Journal records
+    private static final String READ = "READ";
+    private static final String CLEAN = "CLEAN";
+    private static final String PIN = "PIN";
+    private static final String UNPIN = "UNPIN";
+    private static final String REMOVE = "REMOVE";
+
+    // Journal records beyond which the journal is rewritten, if most of them are stale
+    private static final int COMPACT_MIN_RECORDS = 2000;
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    private final HashMap<String, Entry> mEntries = new HashMap<>();
+    // Songs that may be evicted, least recently used first
+    private final LinkedHashMap<String, Entry> mEvictable = new LinkedHashMap<>();
+    private long mSize;
+
+    // Journal writes and deletes, in order; the journal writer is only used on this thread
+    private final ExecutorService mIo = Executors.newSingleThreadExecutor();
+    private Writer mJournal;
+    private int mJournalRecords;
+
+    // Deletes of evicted songs not done yet, by key; a song opened again waits for its delete
+    private final HashMap<String, FutureTask<Void>> mDeleting = new HashMap<>();
+
+    // Whether the journal has been replayed, and pins set before, in order
+    private boolean mReplayed;
+    private final LinkedHashMap<String, Boolean> mPendingPins = new LinkedHashMap<>();
+    // Released once the journal has been replayed and unknown files deleted
+    private final CountDownLatch mLoaded = new CountDownLatch(1);
+
+    /**
+     * @param directory Directory the audio is cached in.
+     * @param maxBytes  Budget of the cache, in bytes.
+     */
+    public AudioCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+        mIo.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * Get the cached audio of a song, with whatever was cached of it before. The song can't be
+     * evicted until it is {@link #release released}.
+     * @param key   Media ID of the song
+     */
+    public CachedAudio open(String key) {
+        awaitLoaded();
+        Entry entry;
+        FutureTask<Void> deleting;
+        synchronized (this) {
+            entry = getOrCreate(key);
+            entry.mUsers++;
+            mEvictable.remove(key);
+            appendJournal(READ, key);
+            deleting = mDeleting.get(key);
+        }
+        // Load the song outside the lock of the cache; the entry can't be evicted meanwhile
+        synchronized (entry) {
+            if (entry.mAudio == null) {
+                if (deleting != null) {
+                    waitFor(deleting);
+                }
+                CachedAudio audio = new CachedAudio(key, mDirectory, this);
+                synchronized (this) {
+                    entry.mAudio = audio;
+                    mSize += audio.getCachedBytes() - entry.mBytes;
+                    entry.mBytes = audio.getCachedBytes();
+                    trim();
+                }
+            }
+            return entry.mAudio;
+        }
+    }
+
+    /**
+     * Let a song opened with {@link #open} be evicted again, once no one else uses it.
+     */
+    public synchronized void release(CachedAudio audio) {
+        Entry entry = mEntries.get(audio.getKey());
+        if (entry == null || entry.mAudio != audio || entry.mUsers == 0) {
+            return;
+        }
+        if (--entry.mUsers == 0) {
+            audio.close();
+            appendJournal(CLEAN, entry.mKey + " " + entry.mBytes);
+            if (!entry.mPinned) {
+                // Most recently used
+                mEvictable.put(entry.mKey, entry);
+            }
+            trim();
+        }
+    }
+
+    /**
+     * Pin a song, so it is never evicted, or unpin it. A song may be pinned before anything of
+     * it is cached.
+     * @param key       Media ID of the song
+     * @param pinned    True to pin the song, false to unpin it.
+     */
+    public synchronized void setPinned(String key, boolean pinned) {
+        if (!isValidKey(key)) {
+            return;
+        }
+        if (!mReplayed) {
+            // Applied over what the journal says once it is replayed
+            mPendingPins.remove(key);
+            mPendingPins.put(key, pinned);
+            return;
+        }
+        Entry entry = getOrCreate(key);
+        if (entry.mPinned == pinned) {
+            return;
+        }
+        entry.mPinned = pinned;
+        if (pinned) {
+            mEvictable.remove(key);
+        } else if (entry.mUsers == 0) {
+            mEvictable.put(key, entry);
+        }
+        appendJournal(pinned ? PIN : UNPIN, key);
+        trim();
+    }
+
+    /**
+     * @return  True if anything of a song is cached, or it is being cached.
+     */
+    public boolean contains(String key) {
+        awaitLoaded();
+        synchronized (this) {
+            Entry entry = mEntries.get(key);
+            return entry != null && (entry.mBytes > 0 || entry.mUsers > 0);
+        }
+    }
+
+    public boolean isPinned(String key) {
+        awaitLoaded();
+        synchronized (this) {
+            Entry entry = mEntries.get(key);
+            return entry != null && entry.mPinned;
+        }
+    }
+
+    /**
+     * @return  Media IDs of the songs pinned.
+     */
+    public List<String> getPinned() {
+        awaitLoaded();
+        synchronized (this) {
+            List<String> keys = new ArrayList<>();
+            for (Entry entry : mEntries.values()) {
+                if (entry.mPinned) {
+                    keys.add(entry.mKey);
+                }
+            }
+            return keys;
+        }
+    }
+
+    /**
+     * @return  Number of bytes cached.
+     */
+    public long getSize() {
+        awaitLoaded();
+        synchronized (this) {
+            return mSize;
+        }
+    }
+
+    public long getMaxSize() {
+        return mMaxBytes;
+    }
+
+    /**
+     * Check if a key can name cached audio; media IDs are track IDs.
+     */
+    public static boolean isValidKey(String key) {
+        if (key == null || key.isEmpty() || key.equals(JOURNAL)) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'z') && !(c >= 'A' && c <= 'Z')
+                    && c != '_' && c != '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Account for bytes written to a song. Called by the song without holding its lock.
+     */
+    synchronized void onCached(CachedAudio audio, long added) {
+        Entry entry = mEntries.get(audio.getKey());
+        if (entry == null || entry.mAudio != audio) {
+            return;
+        }
+        entry.mBytes += added;
+        mSize += added;
+        trim();
+    }
+
+    private Entry getOrCreate(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            mEntries.put(key, entry);
+            mEvictable.put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Evict the least recently used songs until the cache is within its budget.
+     */
+    private void trim() {
+        Iterator<Entry> iterator = mEvictable.values().iterator();
+        while (mSize > mMaxBytes && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            mEntries.remove(entry.mKey);
+            mSize -= entry.mBytes;
+            delete(entry.mKey);
+            appendJournal(REMOVE, entry.mKey);
+            Log.d(TAG, "Evicted " + entry.mKey + ", " + entry.mBytes + " bytes; cache size "
+                    + mSize);
+        }
+    }
+
+    // *********  Journal:
+
+    /**
+     * Replay the journal, delete the files it doesn't know, e.g. written before a crash, and
+     * apply the pins set meanwhile. Runs on the background thread; files are only read and
+     * deleted outside the lock.
+     */
+    private void load() {
+        try {
+            mDirectory.mkdirs();
+            List<String> records = readJournal();
+            File[] files = mDirectory.listFiles();
+            List<File> unknown = new ArrayList<>();
+            synchronized (this) {
+                for (String record : records) {
+                    replay(record);
+                }
+                if (files != null) {
+                    for (File file : files) {
+                        String name = file.getName();
+                        int dot = name.indexOf('.');
+                        String key = dot < 0 ? name : name.substring(0, dot);
+                        if (!name.equals(JOURNAL) && !mEntries.containsKey(key)) {
+                            unknown.add(file);
+                        }
+                    }
+                }
+                writeJournal();
+                trim();
+                mReplayed = true;
+                for (String key : mPendingPins.keySet()) {
+                    setPinned(key, mPendingPins.get(key));
+                }
+                mPendingPins.clear();
+            }
+            // Songs can't be opened yet, so no unknown file is written meanwhile
+            for (File file : unknown) {
+                file.delete();
+            }
+        } finally {
+            synchronized (this) {
+                mReplayed = true;
+            }
+            mLoaded.countDown();
+        }
+    }
+
+    private void awaitLoaded() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mLoaded.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private List<String> readJournal() {
+        List<String> records = new ArrayList<>();
+        File file = new File(mDirectory, JOURNAL);
+        if (!file.exists()) {
+            return records;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                records.add(line);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read the journal, keeping what was read", e);
+        }
+        return records;
+    }
+
+    private void replay(String record) {
+        String[] parts = record.split(" ");
+        if (parts.length < 2 || !isValidKey(parts[1])) {
+            return;
+        }
+        String key = parts[1];
+        Entry entry = getOrCreate(key);
+        switch (parts[0]) {
+            case READ:
+                if (!entry.mPinned) {
+                    // Most recently used
+                    mEvictable.remove(key);
+                    mEvictable.put(key, entry);
+                }
+                break;
+            case CLEAN:
+                if (parts.length > 2) {
+                    long bytes;
+                    try {
+                        bytes = Long.parseLong(parts[2]);
+                    } catch (NumberFormatException e) {
+                        Log.e(TAG, "Bad journal record: " + record);
+                        return;
+                    }
+                    mSize += bytes - entry.mBytes;
+                    entry.mBytes = bytes;
+                }
+                break;
+            case PIN:
+                entry.mPinned = true;
+                mEvictable.remove(key);
+                break;
+            case UNPIN:
+                entry.mPinned = false;
+                mEvictable.put(key, entry);
+                break;
+            case REMOVE:
+                mEntries.remove(key);
+                mEvictable.remove(key);
+                mSize -= entry.mBytes;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Delete the files of an evicted song on the background thread.
+     */
+    private void delete(final String key) {
+        FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                CachedAudio.delete(mDirectory, key);
+            }
+        }, null) {
+            @Override
+            protected void done() {
+                synchronized (AudioCache.this) {
+                    if (mDeleting.get(key) == this) {
+                        mDeleting.remove(key);
+                    }
+                }
+            }
+        };
+        mDeleting.put(key, task);
+        mIo.execute(task);
+    }
+
+    private static void waitFor(FutureTask<Void> task) {
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed to delete a song", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write a new journal with one record per song, and open it for appending. The records are
+     * taken now and written on the background thread.
+     */
+    private void writeJournal() {
+        final List<String> records = new ArrayList<>();
+        for (Entry entry : mEntries.values()) {
+            if (entry.mPinned) {
+                records.add(PIN + " " + entry.mKey);
+                records.add(CLEAN + " " + entry.mKey + " " + entry.mBytes);
+            }
+        }
+        // Least recently used first, so reading it back gives the same order; the songs in use
+        // are the most recently used
+        for (Entry entry : mEvictable.values()) {
+            records.add(CLEAN + " " + entry.mKey + " " + entry.mBytes);
+        }
+        for (Entry entry : mEntries.values()) {
+            if (!entry.mPinned && entry.mUsers > 0) {
+                records.add(CLEAN + " " + entry.mKey + " " + entry.mBytes);
+            }
+        }
+        mJournalRecords = records.size();
+        mIo.execute(new Runnable() {
+            @Override
+            public void run() {
+                replaceJournal(records);
+            }
+        });
+    }
+
+    /**
+     * Replace the journal with records. Runs on the background thread.
+     */
+    private void replaceJournal(List<String> records) {
+        if (mJournal != null) {
+            try {
+                mJournal.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close the journal", e);
+            }
+            mJournal = null;
+        }
+        File temp = new File(mDirectory, JOURNAL_TEMP);
+        File file = new File(mDirectory, JOURNAL);
+        try (Writer writer = new BufferedWriter(new FileWriter(temp))) {
+            for (String record : records) {
+                writer.write(record + "\n");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write the journal", e);
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            Log.e(TAG, "Failed to replace the journal");
+        }
+        try {
+            mJournal = new BufferedWriter(new FileWriter(file, true));
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open the journal", e);
+        }
+    }
+
+    private void appendJournal(String record, String arguments) {
+        final String line = record + " " + arguments + "\n";
+        mIo.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mJournal == null) {
+                    return;
+                }
+                try {
+                    mJournal.write(line);
+                    mJournal.flush();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to append to the journal", e);
+                }
+            }
+        });
+        if (++mJournalRecords > COMPACT_MIN_RECORDS && mJournalRecords > 2 * mEntries.size()) {
+            writeJournal();
+        }
+    }
+
+    private static final class Entry {
+        final String mKey;
+        long mBytes;
+        boolean mPinned;
+        int mUsers;
+        CachedAudio mAudio;
+
+        Entry(String key) {
+            mKey = key;
+        }
+    }
+
+}
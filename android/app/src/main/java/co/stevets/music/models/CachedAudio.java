@@ -0,0 +1,306 @@
+package co.stevets.music.models;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Audio file of one song cached on disk, which may have holes. Bytes are written at their
+ * position in the song as they are downloaded, and the ranges written so far are kept sorted
+ * by start, so finding whether a position is cached takes O(log n) in the number of ranges.
+ * The ranges are saved next to the audio, so a song partly downloaded in a previous session
+ * only needs its missing bytes.
+ *
+ * Thread safe.
+ */
+public class CachedAudio {
+
+    private static final String TAG = "CachedAudio";
+
+    private static final int RANGES_VERSION = 1;
+
+    private final String mKey;
+    private final AudioCache mCache;
+    private final File mDataFile;
+    private final File mRangesFile;
+    private RandomAccessFile mData;
+
+    // Length of the song in bytes, -1 until known
+    private long mLength = -1;
+    private String mContentType;
+    // Whether the song's server answers range requests, as seen when the length was learnt
+    private boolean mAcceptsRanges;
+
+    // Ranges written, from their start included to their end excluded; never touching
+    private final TreeMap<Long, Long> mRanges = new TreeMap<>();
+    private long mCachedBytes;
+
+    CachedAudio(String key, File directory, AudioCache cache) {
+        mKey = key;
+        mCache = cache;
+        mDataFile = getDataFile(directory, key);
+        mRangesFile = getRangesFile(directory, key);
+        load();
+    }
+
+    public String getKey() {
+        return mKey;
+    }
+
+    /**
+     * @return  Length of the song in bytes, or -1 if unknown.
+     */
+    public synchronized long getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return  MIME type of the song, or null if unknown.
+     */
+    public synchronized String getContentType() {
+        return mContentType;
+    }
+
+    /**
+     * @return  True if the song's server answered a range request when the length was learnt.
+     */
+    public synchronized boolean acceptsRanges() {
+        return mAcceptsRanges;
+    }
+
+    /**
+     * Set what the song's server told about the song. Forgets the cached bytes if the length
+     * differs from the one known.
+     * @param length        Length of the song in bytes
+     * @param contentType   MIME type of the song, or null if unknown.
+     * @param acceptsRanges True if the server answered a range request.
+     */
+    public void setLength(long length, String contentType, boolean acceptsRanges) {
+        long removed;
+        synchronized (this) {
+            removed = mLength != length ? mCachedBytes : 0;
+            if (mLength != length) {
+                // Another file, forget what was cached of the old one
+                mRanges.clear();
+                mCachedBytes = 0;
+            }
+            mLength = length;
+            mContentType = contentType;
+            mAcceptsRanges = acceptsRanges;
+        }
+        if (removed > 0) {
+            mCache.onCached(this, -removed);
+        }
+    }
+
+    /**
+     * @return  Number of bytes cached.
+     */
+    public synchronized long getCachedBytes() {
+        return mCachedBytes;
+    }
+
+    /**
+     * @return  True if every byte of the song is cached.
+     */
+    public synchronized boolean isComplete() {
+        return mLength >= 0 && mCachedBytes >= mLength;
+    }
+
+    /**
+     * Get the end of the cached bytes from a position.
+     * @param position  Position in the song
+     * @return          End of the cached range holding the position, or the position itself
+     *                  if it isn't cached.
+     */
+    public synchronized long getCachedEnd(long position) {
+        Map.Entry<Long, Long> range = mRanges.floorEntry(position);
+        return range != null && range.getValue() > position ? range.getValue() : position;
+    }
+
+    /**
+     * Get the start of the next cached bytes after a position.
+     * @param position  Position in the song
+     * @return          Start of the first cached range after the position, or
+     *                  {@link Long#MAX_VALUE} if there is none.
+     */
+    public synchronized long getNextCachedStart(long position) {
+        Long start = mRanges.higherKey(position);
+        return start != null ? start : Long.MAX_VALUE;
+    }
+
+    /**
+     * Read cached bytes.
+     * @return  Number of bytes read, which stops at the end of the cached range.
+     */
+    public synchronized int read(long position, byte[] buffer, int offset, int count)
+            throws IOException {
+        count = (int) Math.min(count, getCachedEnd(position) - position);
+        if (count <= 0) {
+            return 0;
+        }
+        RandomAccessFile data = open();
+        data.seek(position);
+        data.readFully(buffer, offset, count);
+        return count;
+    }
+
+    /**
+     * Write downloaded bytes, and record them as cached. Writes don't move the file pointer, so
+     * several downloads of the same song write at the same time.
+     */
+    public void write(long position, byte[] buffer, int offset, int count) throws IOException {
+        if (count <= 0) {
+            return;
+        }
+        FileChannel channel;
+        synchronized (this) {
+            channel = open().getChannel();
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(buffer, offset, count);
+        long at = position;
+        while (bytes.hasRemaining()) {
+            at += channel.write(bytes, at);
+        }
+        long added;
+        synchronized (this) {
+            long before = mCachedBytes;
+            addRange(position, position + count);
+            added = mCachedBytes - before;
+        }
+        // Outside the lock; the cache locks itself before the songs it evicts
+        if (added > 0) {
+            mCache.onCached(this, added);
+        }
+    }
+
+    /**
+     * Give the audio file the length of the song, so writes anywhere in it don't grow it.
+     */
+    public synchronized void preallocate() throws IOException {
+        RandomAccessFile data = open();
+        if (mLength > 0 && data.length() < mLength) {
+            data.setLength(mLength);
+        }
+    }
+
+    /**
+     * Save the cached ranges, so they are known after a restart.
+     */
+    public synchronized void save() {
+        File temp = new File(mRangesFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temp))) {
+            out.writeInt(RANGES_VERSION);
+            out.writeLong(mLength);
+            out.writeUTF(mContentType != null ? mContentType : "");
+            out.writeBoolean(mAcceptsRanges);
+            out.writeInt(mRanges.size());
+            for (Map.Entry<Long, Long> range : mRanges.entrySet()) {
+                out.writeLong(range.getKey());
+                out.writeLong(range.getValue());
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save the ranges of " + mKey, e);
+            return;
+        }
+        if (!temp.renameTo(mRangesFile)) {
+            Log.e(TAG, "Failed to replace the ranges of " + mKey);
+        }
+    }
+
+    /**
+     * Close the audio file. It is opened again when needed.
+     */
+    public synchronized void close() {
+        if (mData != null) {
+            try {
+                mData.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close " + mDataFile, e);
+            }
+            mData = null;
+        }
+    }
+
+    /**
+     * Delete the cached audio of a song and its ranges.
+     */
+    static void delete(File directory, String key) {
+        getDataFile(directory, key).delete();
+        getRangesFile(directory, key).delete();
+    }
+
+    private static File getDataFile(File directory, String key) {
+        return new File(directory, key + ".audio");
+    }
+
+    private static File getRangesFile(File directory, String key) {
+        return new File(directory, key + ".ranges");
+    }
+
+    private RandomAccessFile open() throws IOException {
+        if (mData == null) {
+            mData = new RandomAccessFile(mDataFile, "rw");
+        }
+        return mData;
+    }
+
+    private void addRange(long start, long end) {
+        // Merge with the ranges it touches
+        Map.Entry<Long, Long> before = mRanges.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+            mCachedBytes -= before.getValue() - before.getKey();
+            mRanges.remove(before.getKey());
+        }
+        Map.Entry<Long, Long> after = mRanges.ceilingEntry(start);
+        while (after != null && after.getKey() <= end) {
+            end = Math.max(end, after.getValue());
+            mCachedBytes -= after.getValue() - after.getKey();
+            mRanges.remove(after.getKey());
+            after = mRanges.ceilingEntry(start);
+        }
+        mRanges.put(start, end);
+        mCachedBytes += end - start;
+    }
+
+    private void load() {
+        if (!mRangesFile.exists() || !mDataFile.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(mRangesFile))) {
+            int version = in.readInt();
+            if (version != RANGES_VERSION) {
+                return;
+            }
+            mLength = in.readLong();
+            String contentType = in.readUTF();
+            mContentType = contentType.isEmpty() ? null : contentType;
+            mAcceptsRanges = in.readBoolean();
+            long fileLength = mDataFile.length();
+            for (int count = in.readInt(); count > 0; count--) {
+                long start = in.readLong();
+                long end = Math.min(in.readLong(), fileLength);
+                if (start < end) {
+                    addRange(start, end);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load the ranges of " + mKey, e);
+            mRanges.clear();
+            mCachedBytes = 0;
+        }
+    }
+
+}
@@ -0,0 +1,530 @@
+package co.stevets.music.models;
+
+import java.util.Arrays;
+
+/**
+ * Secondary indexes over the tracks in the catalog: tracks by artist, and tracks sorted by
+ * loved count and by date posted. Like the catalog it belongs to, an
+ * index is immutable once built; adding tracks builds a new index that shares what didn't
+ * change with the old one.
+ *
+ * The sorted views are kept as a few sorted runs, one added per batch of tracks, so adding a
+ * batch only sorts the batch. Queries merge the runs as they read them. A track that was
+ * updated is listed again in a newer run, and is skipped in the older ones. Once there are
+ * more than {@link #MAX_RUNS} runs, {@link #compact} merges the newest ones into one, off the
+ * thread adding tracks; the tiers it leaves grow roughly geometrically, so every track is
+ * merged O(log n) times.
+ */
+final class CatalogIndex {
+
+    static final CatalogIndex EMPTY = new CatalogIndex(new Run[0], ArtistTable.EMPTY);
+
+    // Number of runs above which the index should be compacted
+    private static final int MAX_RUNS = 8;
+
+    // Sort orders
+    private static final int BY_LOVED = 0;
+    private static final int BY_DATE = 1;
+
+    // Sorted runs, oldest first
+    private final Run[] mRuns;
+    // Rows of every artist, indexed by artist code
+    private final ArtistTable mByArtist;
+
+    private CatalogIndex(Run[] runs, ArtistTable byArtist) {
+        mRuns = runs;
+        mByArtist = byArtist;
+    }
+
+    /**
+     * Build the index that also covers rows that were added or updated.
+     * Runs in O(k log k) for the sorted views and amortized O(k log n) for the artists of the
+     * k rows.
+     * @param tracks    Tracks, including the new rows.
+     * @param rows      Rows that were added or updated.
+     * @param count     Number of rows in the array.
+     * @return          The new index.
+     */
+    CatalogIndex withRows(TrackStore.Snapshot tracks, int[] rows, int count) {
+        if (count == 0) {
+            return this;
+        }
+        int[] touched = Arrays.copyOf(rows, count);
+        Arrays.sort(touched);
+        int unique = 0;
+        for (int i = 0; i < touched.length; i++) {
+            if (i == 0 || touched[i] != touched[i - 1]) {
+                touched[unique++] = touched[i];
+            }
+        }
+        touched = Arrays.copyOf(touched, unique);
+
+        Run[] runs = Arrays.copyOf(mRuns, mRuns.length + 1);
+        runs[mRuns.length] = new Run(tracks, touched,
+                sort(touched, tracks, BY_LOVED), sort(touched, tracks, BY_DATE));
+        return new CatalogIndex(runs, mByArtist.withRows(touched, tracks));
+    }
+
+    /**
+     * @return  True if the index has enough runs that {@link #compact} should be called.
+     */
+    boolean needsCompaction() {
+        return mRuns.length > MAX_RUNS;
+    }
+
+    /**
+     * Merge the newest runs into one: the runs from the oldest one that isn't larger than
+     * all the runs after it together. Takes O(n) in the rows merged, and only reads the index,
+     * so it may run on any thread. Publish the result with {@link #withCompacted}.
+     * @param tracks    Tracks the index was built for.
+     * @return          The compacted index.
+     */
+    CatalogIndex compact(TrackStore.Snapshot tracks) {
+        if (mRuns.length < 2) {
+            return this;
+        }
+        int first = mRuns.length - 2;
+        int newer = 0;
+        for (int i = mRuns.length - 1; i > 0; i--) {
+            newer += mRuns[i].mRows.length;
+            if (mRuns[i - 1].mRows.length <= newer) {
+                first = i - 1;
+            }
+        }
+
+        Merger byLoved = new Merger(tracks, BY_LOVED, first);
+        Merger byDate = new Merger(tracks, BY_DATE, first);
+        int size = 0;
+        for (int i = first; i < mRuns.length; i++) {
+            size += mRuns[i].mRows.length;
+        }
+        int[] loved = new int[size];
+        int[] date = new int[size];
+        int count = 0;
+        for (int row = byLoved.next(); row >= 0; row = byLoved.next()) {
+            loved[count++] = row;
+        }
+        count = 0;
+        for (int row = byDate.next(); row >= 0; row = byDate.next()) {
+            date[count++] = row;
+        }
+        loved = Arrays.copyOf(loved, count);
+        date = Arrays.copyOf(date, count);
+        int[] merged = date.clone();
+        Arrays.sort(merged);
+
+        Run[] runs = Arrays.copyOf(mRuns, first + 1);
+        runs[first] = new Run(tracks, merged, loved, date);
+        return new CatalogIndex(runs, mByArtist);
+    }
+
+    /**
+     * Build the index that uses a compaction of an older index. Runs added since the older
+     * index are kept as they are.
+     * @param older     Index {@link #compact} was called on, this index or an older one.
+     * @param compacted Index it returned.
+     * @return          The new index, or this index if its runs no longer start with the runs
+     *                  of the older index.
+     */
+    CatalogIndex withCompacted(CatalogIndex older, CatalogIndex compacted) {
+        if (older.mRuns.length > mRuns.length) {
+            return this;
+        }
+        for (int i = 0; i < older.mRuns.length; i++) {
+            if (older.mRuns[i] != mRuns[i]) {
+                return this;
+            }
+        }
+        int added = mRuns.length - older.mRuns.length;
+        Run[] runs = Arrays.copyOf(compacted.mRuns, compacted.mRuns.length + added);
+        System.arraycopy(mRuns, older.mRuns.length, runs, compacted.mRuns.length, added);
+        return new CatalogIndex(runs, mByArtist);
+    }
+
+    /**
+     * Get the rows of an artist, in the order they were added.
+     * @param tracks    Tracks the index was built for.
+     * @param artist    Artist code
+     * @return          Rows of the artist.
+     */
+    int[] getByArtist(TrackStore.Snapshot tracks, int artist) {
+        int[] rows = mByArtist.getRows(artist);
+        int count = mByArtist.getSize(artist);
+        int[] result = new int[count];
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            // Skip rows whose artist has changed since they were indexed
+            if (tracks.getArtistCode(rows[i]) == artist) {
+                result[size++] = rows[i];
+            }
+        }
+        return size == count ? result : Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Get the newest rows.
+     * @param tracks    Tracks the index was built for.
+     * @param count     Maximum number of rows.
+     * @return          Rows sorted by date posted, newest first.
+     */
+    int[] getLatest(TrackStore.Snapshot tracks, int count) {
+        int[] result = new int[Math.max(0, Math.min(count, size()))];
+        Merger byDate = new Merger(tracks, BY_DATE, 0);
+        int size = 0;
+        for (int row; size < result.length && (row = byDate.next()) >= 0; ) {
+            result[size++] = row;
+        }
+        return size == result.length ? result : Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Get the most loved rows posted since a date. Uses whichever is cheaper of walking the
+     * loved view until enough rows match, or a bounded heap over the rows in the date range.
+     * @param tracks    Tracks the index was built for.
+     * @param count     Maximum number of rows.
+     * @param since     Earliest date posted, in seconds.
+     * @return          Rows sorted by loved count, most loved first.
+     */
+    int[] getMostLoved(TrackStore.Snapshot tracks, int count, int since) {
+        if (count <= 0) {
+            return new int[0];
+        }
+
+        // The rows posted since the date are a prefix of the date view of every run. Rows
+        // updated since have another date now, so search the dates the run was sorted by.
+        int[] inRun = new int[mRuns.length];
+        int inRange = 0;
+        for (int i = 0; i < mRuns.length; i++) {
+            int[] dates = mRuns[i].mDates;
+            int low = 0;
+            int high = dates.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (dates[mid] >= since) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            inRun[i] = low;
+            inRange += low;
+        }
+
+        if (inRange * 2 >= size()) {
+            // Most rows match, so the first matches in the loved view come quickly
+            int[] result = new int[Math.min(count, inRange)];
+            Merger byLoved = new Merger(tracks, BY_LOVED, 0);
+            int size = 0;
+            for (int row; size < result.length && (row = byLoved.next()) >= 0; ) {
+                if (tracks.getDatePosted(row) >= since) {
+                    result[size++] = row;
+                }
+            }
+            return size == result.length ? result : Arrays.copyOf(result, size);
+        }
+
+        // Keep the most loved rows of the range in a min-heap of the given size
+        int[] heap = new int[Math.min(count, inRange)];
+        int size = 0;
+        for (int run = 0; run < mRuns.length; run++) {
+            int[] byDate = mRuns[run].mByDate;
+            for (int i = 0; i < inRun[run]; i++) {
+                int row = byDate[i];
+                if (!isLatest(run, row)) {
+                    continue;
+                }
+                if (size < heap.length) {
+                    heap[size++] = row;
+                    siftUp(heap, size - 1, tracks);
+                } else if (compare(tracks, BY_LOVED, row, heap[0]) < 0) {
+                    heap[0] = row;
+                    siftDown(heap, size, tracks);
+                }
+            }
+        }
+
+        // Pop the least loved row into the end of the array until the heap is empty
+        for (int end = size - 1; end > 0; end--) {
+            int least = heap[0];
+            heap[0] = heap[end];
+            heap[end] = least;
+            siftDown(heap, end, tracks);
+        }
+        return size == heap.length ? heap : Arrays.copyOf(heap, size);
+    }
+
+    /**
+     * @return  Number of rows in the runs, counting updated rows once per run they are in.
+     */
+    private int size() {
+        int size = 0;
+        for (Run run : mRuns) {
+            size += run.mRows.length;
+        }
+        return size;
+    }
+
+    /**
+     * Check if a run places a row where it belongs, i.e. no newer run lists it again.
+     */
+    private boolean isLatest(int run, int row) {
+        for (int i = run + 1; i < mRuns.length; i++) {
+            if (Arrays.binarySearch(mRuns[i].mRows, row) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sort rows in an order. Keys and rows are packed in longs, so this is a primitive sort.
+     */
+    private static int[] sort(int[] rows, TrackStore.Snapshot tracks, int order) {
+        long[] keys = new long[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            int key = order == BY_LOVED
+                    ? tracks.getLovedCount(rows[i]) : tracks.getDatePosted(rows[i]);
+            keys[i] = (long) key << 32 | rows[i];
+        }
+        Arrays.sort(keys);
+        // Largest key first, ties by row, newest row first
+        int[] sorted = new int[rows.length];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = (int) keys[keys.length - 1 - i];
+        }
+        return sorted;
+    }
+
+    /**
+     * Rows of every artist, sorted by row, so in the order they were added. Artists are kept
+     * in chunks of {@link #CHUNK_SIZE}, and adding rows only copies the chunks of the artists
+     * they belong to. Rows are appended past the size of a list the older tables read, in
+     * place while there is room, so lists grow by doubling. Like
+     * {@link co.stevets.music.utils.IntArrayList}, this relies on a single writer that only
+     * ever adds to the newest table.
+     */
+    private static final class ArtistTable {
+        static final ArtistTable EMPTY = new ArtistTable(new int[0][][], new int[0][]);
+
+        private static final int CHUNK_SHIFT = 8;
+        private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+        private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+        private static final int[] NO_ROWS = new int[0];
+
+        // Rows of every artist, and the number of them used
+        private final int[][][] mRows;
+        private final int[][] mSizes;
+
+        private ArtistTable(int[][][] rows, int[][] sizes) {
+            mRows = rows;
+            mSizes = sizes;
+        }
+
+        /**
+         * @return  Rows of an artist; only the first {@link #getSize} are used.
+         */
+        int[] getRows(int artist) {
+            int chunk = artist >> CHUNK_SHIFT;
+            if (artist < 0 || chunk >= mRows.length) {
+                return NO_ROWS;
+            }
+            int[] rows = mRows[chunk][artist & CHUNK_MASK];
+            return rows != null ? rows : NO_ROWS;
+        }
+
+        int getSize(int artist) {
+            int chunk = artist >> CHUNK_SHIFT;
+            return artist < 0 || chunk >= mSizes.length ? 0 : mSizes[chunk][artist & CHUNK_MASK];
+        }
+
+        /**
+         * Build the table that also lists rows under their current artist.
+         */
+        ArtistTable withRows(int[] touched, TrackStore.Snapshot tracks) {
+            int chunks = mRows.length;
+            for (int row : touched) {
+                chunks = Math.max(chunks, (tracks.getArtistCode(row) >> CHUNK_SHIFT) + 1);
+            }
+            int[][][] rows = Arrays.copyOf(mRows, chunks);
+            int[][] sizes = Arrays.copyOf(mSizes, chunks);
+            // Chunks already copied for this table
+            boolean[] copied = new boolean[chunks];
+
+            for (int row : touched) {
+                int artist = tracks.getArtistCode(row);
+                if (artist < 0) {
+                    continue;
+                }
+                int chunk = artist >> CHUNK_SHIFT;
+                int i = artist & CHUNK_MASK;
+                if (!copied[chunk]) {
+                    rows[chunk] = rows[chunk] != null
+                            ? rows[chunk].clone() : new int[CHUNK_SIZE][];
+                    sizes[chunk] = sizes[chunk] != null
+                            ? sizes[chunk].clone() : new int[CHUNK_SIZE];
+                    copied[chunk] = true;
+                }
+
+                int[] list = rows[chunk][i];
+                int size = sizes[chunk][i];
+                int at = list == null ? -1 : Arrays.binarySearch(list, 0, size, row);
+                if (at >= 0) {
+                    // Already listed
+                    continue;
+                }
+                at = list == null ? 0 : -at - 1;
+                if (at == size && list != null && size < list.length) {
+                    // Older tables don't read past their size
+                    list[size] = row;
+                } else {
+                    // New rows come last; a row inserted before the end moved from another
+                    // artist, and the older tables still read the list, so copy it
+                    int[] grown = new int[Math.max(2, size << 1)];
+                    if (list != null) {
+                        System.arraycopy(list, 0, grown, 0, at);
+                        System.arraycopy(list, at, grown, at + 1, size - at);
+                    }
+                    grown[at] = row;
+                    rows[chunk][i] = grown;
+                }
+                sizes[chunk][i] = size + 1;
+            }
+            return new ArtistTable(rows, sizes);
+        }
+    }
+
+    /**
+     * Rows of one batch, or of several merged batches, in every sort order.
+     */
+    private static final class Run {
+        // Rows sorted by row, to find whether a run lists a row
+        final int[] mRows;
+        // Rows sorted by loved count, most loved first
+        final int[] mByLoved;
+        // Rows sorted by date posted, newest first, and their dates when they were sorted
+        final int[] mByDate;
+        final int[] mDates;
+
+        Run(TrackStore.Snapshot tracks, int[] rows, int[] byLoved, int[] byDate) {
+            mRows = rows;
+            mByLoved = byLoved;
+            mByDate = byDate;
+            mDates = new int[byDate.length];
+            for (int i = 0; i < byDate.length; i++) {
+                mDates[i] = tracks.getDatePosted(byDate[i]);
+            }
+        }
+    }
+
+    /**
+     * Reads the runs from a given one onwards in a sort order, as if they were one sorted
+     * array, skipping the rows that a newer run lists again.
+     */
+    private final class Merger {
+        private final TrackStore.Snapshot mTracks;
+        private final int mOrder;
+        private final int mFirst;
+        // Position of the next row to read in every run, and that row, or -1 if none is left
+        private final int[] mNext;
+        private final int[] mHeads;
+
+        Merger(TrackStore.Snapshot tracks, int order, int first) {
+            mTracks = tracks;
+            mOrder = order;
+            mFirst = first;
+            mNext = new int[mRuns.length];
+            mHeads = new int[mRuns.length];
+            for (int i = first; i < mRuns.length; i++) {
+                advance(i);
+            }
+        }
+
+        /**
+         * @return  The next row, or -1 once every run has been read.
+         */
+        int next() {
+            int best = -1;
+            for (int i = mFirst; i < mRuns.length; i++) {
+                if (mHeads[i] >= 0 && (best < 0
+                        || compare(mTracks, mOrder, mHeads[i], mHeads[best]) < 0)) {
+                    best = i;
+                }
+            }
+            if (best < 0) {
+                return -1;
+            }
+            int row = mHeads[best];
+            advance(best);
+            return row;
+        }
+
+        private void advance(int run) {
+            int[] rows = mOrder == BY_LOVED ? mRuns[run].mByLoved : mRuns[run].mByDate;
+            while (mNext[run] < rows.length && !isLatest(run, rows[mNext[run]])) {
+                mNext[run]++;
+            }
+            mHeads[run] = mNext[run] < rows.length ? rows[mNext[run]++] : -1;
+        }
+    }
+
+    /**
+     * Compare two rows in a sort order. Ties are broken by row, newest row first.
+     * @return  A negative number if a comes first, a positive number if b comes first.
+     */
+    private static int compare(TrackStore.Snapshot tracks, int order, int a, int b) {
+        int keyA;
+        int keyB;
+        if (order == BY_LOVED) {
+            keyA = tracks.getLovedCount(a);
+            keyB = tracks.getLovedCount(b);
+        } else {
+            keyA = tracks.getDatePosted(a);
+            keyB = tracks.getDatePosted(b);
+        }
+        if (keyA != keyB) {
+            return keyA > keyB ? -1 : 1;
+        }
+        return a == b ? 0 : (a > b ? -1 : 1);
+    }
+
+    // Min-heap helpers, the least loved row is at the root
+
+    private static void siftUp(int[] heap, int i, TrackStore.Snapshot tracks) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (compare(tracks, BY_LOVED, heap[i], heap[parent]) <= 0) {
+                break;
+            }
+            swap(heap, i, parent);
+            i = parent;
+        }
+    }
+
+    private static void siftDown(int[] heap, int size, TrackStore.Snapshot tracks) {
+        int i = 0;
+        while (true) {
+            int least = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < size && compare(tracks, BY_LOVED, heap[left], heap[least]) > 0) {
+                least = left;
+            }
+            if (right < size && compare(tracks, BY_LOVED, heap[right], heap[least]) > 0) {
+                least = right;
+            }
+            if (least == i) {
+                return;
+            }
+            swap(heap, i, least);
+            i = least;
+        }
+    }
+
+    private static void swap(int[] heap, int i, int j) {
+        int tmp = heap[i];
+        heap[i] = heap[j];
+        heap[j] = tmp;
+    }
+
+}
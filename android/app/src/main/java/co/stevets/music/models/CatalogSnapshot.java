@@ -0,0 +1,360 @@
+package co.stevets.music.models;
+
+import android.media.MediaMetadata;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import co.stevets.music.utils.Common;
+
+/**
+ * Read-only copy of the media catalog stored on disk.
+ * The file is memory-mapped and songs are decoded straight from it when they are requested,
+ * so the catalog of the previous session can be used before the network refresh finishes.
+ *
+ * File layout (big-endian):
+ * <pre>
+ *   header     MAGIC, VERSION, record count, page count, string table offset
+ *   records    one fixed-width record per song on a page (see RECORD_SIZE)
+ *   id table   (track ID, record) pairs sorted by track ID
+ *   pages      (name, first record, record count) for every page
+ *   strings    length-prefixed UTF-8 strings, each distinct string stored once
+ * </pre>
+ */
+public class CatalogSnapshot {
+
+    private static final String TAG = "CatalogSnapshot";
+
+    private static final int MAGIC = 0x48595045;    // "HYPE"
+    // Version 2 didn't store the date posted and loved count
+    private static final int VERSION = 3;
+
+    private static final int HEADER_SIZE = 5 * 4;
+    // Track ID, then source, artist, title and album art string offsets, then the duration,
+    // date posted and loved count
+    private static final int RECORD_SIZE = 8 + 4 * 4 + 8 + 4 + 4;
+    private static final int ID_ENTRY_SIZE = 8 + 4;
+    private static final int PAGE_SIZE = 3 * 4;
+
+    private static final int NO_STRING = -1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer mBuffer;
+    private final int mRecordCount;
+    private final int mPageCount;
+    private final int mStringsOffset;
+
+    private CatalogSnapshot(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a catalog snapshot");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported catalog snapshot version " + buffer.getInt(4));
+        }
+        mRecordCount = buffer.getInt(8);
+        mPageCount = buffer.getInt(12);
+        mStringsOffset = buffer.getInt(16);
+        if (mRecordCount < 0 || mPageCount < 0 || mStringsOffset != getPagesOffset()
+                + mPageCount * PAGE_SIZE || mStringsOffset > buffer.capacity()) {
+            throw new IOException("Corrupt catalog snapshot");
+        }
+    }
+
+    /**
+     * Memory-map a snapshot written by {@link #write}.
+     * @param file  Snapshot file.
+     * @return      The snapshot, or null if the file is missing or can't be read.
+     */
+    public static CatalogSnapshot open(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            // The mapping stays valid after the channel is closed.
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new CatalogSnapshot(buffer);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open catalog snapshot " + file + ". Error: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Write the catalog to disk. The file is replaced atomically so a crash while writing
+     * never leaves a half-written snapshot behind.
+     * @param file  Snapshot file.
+     * @param pages Songs on every Hype Machine page.
+     */
+    public static void write(File file, Map<String, ? extends Iterable<MediaMetadata>> pages)
+            throws IOException {
+        StringTable strings = new StringTable();
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream recordsOut = new DataOutputStream(records);
+        List<long[]> ids = new ArrayList<>();
+        List<int[]> pageEntries = new ArrayList<>();
+
+        int recordCount = 0;
+        for (Map.Entry<String, ? extends Iterable<MediaMetadata>> page : pages.entrySet()) {
+            int first = recordCount;
+            for (MediaMetadata track : page.getValue()) {
+                long trackId = Long.parseLong(track.getString(Common.METADATA_MEDIA_ID));
+                recordsOut.writeLong(trackId);
+                recordsOut.writeInt(strings.add(track.getString(Common.METADATA_SOURCE)));
+                recordsOut.writeInt(strings.add(track.getString(Common.METADATA_ARTIST)));
+                recordsOut.writeInt(strings.add(track.getString(Common.METADATA_TITLE)));
+                recordsOut.writeInt(strings.add(track.getString(Common.METADATA_ALBUM_ART_URL)));
+                recordsOut.writeLong(track.getLong(Common.METADATA_DURATION));
+                recordsOut.writeInt((int) track.getLong(Common.METADATA_DATE_POSTED));
+                recordsOut.writeInt((int) track.getLong(Common.METADATA_LOVED_COUNT));
+                ids.add(new long[] {trackId, recordCount});
+                recordCount++;
+            }
+            pageEntries.add(new int[] {strings.add(page.getKey()), first, recordCount - first});
+        }
+
+        long[][] idTable = ids.toArray(new long[ids.size()][]);
+        Arrays.sort(idTable, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+            }
+        });
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(recordCount);
+            out.writeInt(pageEntries.size());
+            out.writeInt(HEADER_SIZE + recordCount * (RECORD_SIZE + ID_ENTRY_SIZE)
+                    + pageEntries.size() * PAGE_SIZE);
+            records.writeTo(out);
+            for (long[] entry : idTable) {
+                out.writeLong(entry[0]);
+                out.writeInt((int) entry[1]);
+            }
+            for (int[] entry : pageEntries) {
+                out.writeInt(entry[0]);
+                out.writeInt(entry[1]);
+                out.writeInt(entry[2]);
+            }
+            strings.writeTo(out);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    /**
+     * Get the Hype Machine pages stored in the snapshot.
+     * @return  List of page names.
+     */
+    public List<String> getPages() {
+        List<String> pages = new ArrayList<>(mPageCount);
+        for (int i = 0; i < mPageCount; i++) {
+            pages.add(getString(mBuffer.getInt(getPagesOffset() + i * PAGE_SIZE)));
+        }
+        return pages;
+    }
+
+    /**
+     * Get songs from a specified page. Songs are decoded one at a time while iterating.
+     * @param page  Name of the Hype Machine page.
+     * @return      An iterator over the songs on the page.
+     */
+    public Iterable<MediaMetadata> getMusicsByPage(String page) {
+        for (int i = 0; i < mPageCount; i++) {
+            int entry = getPagesOffset() + i * PAGE_SIZE;
+            if (page.equals(getString(mBuffer.getInt(entry)))) {
+                return new RecordRange(mBuffer.getInt(entry + 4), mBuffer.getInt(entry + 8));
+            }
+        }
+        return new ArrayList<>(0);
+    }
+
+    /**
+     * Get song with the specified ID.
+     * @param trackId   Stable 64-bit song ID
+     * @return The media metadata of the song, or null if it isn't in the snapshot.
+     */
+    public MediaMetadata getMusic(long trackId) {
+        int idOffset = getIdsOffset();
+
+        // Binary search over the sorted ID table
+        int low = 0;
+        int high = mRecordCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long id = mBuffer.getLong(idOffset + mid * ID_ENTRY_SIZE);
+            if (id < trackId) {
+                low = mid + 1;
+            } else if (id > trackId) {
+                high = mid - 1;
+            } else {
+                return getRecord(mBuffer.getInt(idOffset + mid * ID_ENTRY_SIZE + 8));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return  Number of songs stored, counting a song once for every page it is on.
+     */
+    int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Get the track ID of a song.
+     * @param record    Record of the song, from 0 to {@link #getRecordCount()}.
+     */
+    long getTrackId(int record) {
+        return mBuffer.getLong(getRecordOffset(record));
+    }
+
+    /**
+     * Decode a song, with the fields the catalog keeps.
+     * @param record    Record of the song, from 0 to {@link #getRecordCount()}.
+     * @return          The song.
+     */
+    Song getSong(int record) {
+        int offset = getRecordOffset(record);
+        Song song = new Song();
+        song.setUrl(getString(mBuffer.getInt(offset + 8)));
+        song.setArtist(getString(mBuffer.getInt(offset + 12)));
+        song.setTitle(getString(mBuffer.getInt(offset + 16)));
+        song.setThumbUrlLarge(getString(mBuffer.getInt(offset + 20)));
+        song.setTime((int) mBuffer.getLong(offset + 24));
+        song.setDatePosted(mBuffer.getInt(offset + 32));
+        song.setLovedCount(mBuffer.getInt(offset + 36));
+        return song;
+    }
+
+    private MediaMetadata getRecord(int record) {
+        int offset = getRecordOffset(record);
+        return new MediaMetadata.Builder()
+                .putString(Common.METADATA_MEDIA_ID, String.valueOf(mBuffer.getLong(offset)))
+                .putString(Common.METADATA_SOURCE, getString(mBuffer.getInt(offset + 8)))
+                .putString(Common.METADATA_ARTIST, getString(mBuffer.getInt(offset + 12)))
+                .putString(Common.METADATA_TITLE, getString(mBuffer.getInt(offset + 16)))
+                .putString(Common.METADATA_ALBUM_ART_URL, getString(mBuffer.getInt(offset + 20)))
+                .putLong(Common.METADATA_DURATION, mBuffer.getLong(offset + 24))
+                .putLong(Common.METADATA_DATE_POSTED, mBuffer.getInt(offset + 32))
+                .putLong(Common.METADATA_LOVED_COUNT, mBuffer.getInt(offset + 36))
+                .build();
+    }
+
+    private String getString(int offset) {
+        if (offset == NO_STRING) {
+            return null;
+        }
+        int position = mStringsOffset + offset;
+        byte[] bytes = new byte[mBuffer.getInt(position)];
+        // Work on a duplicate so concurrent readers don't share the buffer position
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(position + 4);
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private int getRecordOffset(int record) {
+        return HEADER_SIZE + record * RECORD_SIZE;
+    }
+
+    private int getIdsOffset() {
+        return HEADER_SIZE + mRecordCount * RECORD_SIZE;
+    }
+
+    private int getPagesOffset() {
+        return getIdsOffset() + mRecordCount * ID_ENTRY_SIZE;
+    }
+
+    /**
+     * Songs stored in consecutive records.
+     */
+    private class RecordRange implements Iterable<MediaMetadata> {
+        private final int mFirst;
+        private final int mCount;
+
+        RecordRange(int first, int count) {
+            mFirst = first;
+            mCount = count;
+        }
+
+        @Override
+        public Iterator<MediaMetadata> iterator() {
+            return new Iterator<MediaMetadata>() {
+                private int mNext = mFirst;
+
+                @Override
+                public boolean hasNext() {
+                    return mNext < mFirst + mCount;
+                }
+
+                @Override
+                public MediaMetadata next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return getRecord(mNext++);
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+
+    /**
+     * De-duplicated table of strings, addressed by their offset in the table.
+     */
+    private static class StringTable {
+        private final HashMap<String, Integer> mOffsets = new HashMap<>();
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        private final DataOutputStream mOut = new DataOutputStream(mBytes);
+
+        int add(String value) throws IOException {
+            if (value == null) {
+                return NO_STRING;
+            }
+            Integer offset = mOffsets.get(value);
+            if (offset == null) {
+                offset = mBytes.size();
+                byte[] bytes = value.getBytes(UTF_8);
+                mOut.writeInt(bytes.length);
+                mOut.write(bytes);
+                mOffsets.put(value, offset);
+            }
+            return offset;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            mBytes.writeTo(out);
+        }
+    }
+
+}
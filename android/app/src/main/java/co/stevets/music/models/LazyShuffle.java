@@ -0,0 +1,189 @@
+package co.stevets.music.models;
+
+import android.media.MediaDescription;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import co.stevets.music.utils.FeistelPermutation;
+
+/**
+ * Endless shuffle of the catalog that draws one song at a time, so the full permutation is
+ * never built. Songs added to the catalog while shuffling join the shuffle, and a song is not
+ * drawn again until every song has been drawn.
+ *
+ * With {@link ShuffleWeight#UNIFORM}, songs are drawn in the order of a
+ * {@link FeistelPermutation} over an epoch of rows. An epoch covers the rows that haven't been
+ * shuffled yet, or every row once they all have; the shuffle is reproduced from its seed, its
+ * epoch and its position, which is all there is to save. Rows depend on the order songs came
+ * into the catalog, so the track ID of the last song drawn is saved too: a shuffle resumed
+ * over rows that no longer hold that song goes on with a new epoch and a new seed instead.
+ * With other weights, songs are drawn from the provider's weighted sampler and one bit per
+ * song remembers which were drawn.
+ *
+ * Used from the main thread.
+ */
+public class LazyShuffle {
+
+    // Draws that land on songs already drawn before picking among the rest directly
+    private static final int MAX_REJECTIONS = 32;
+
+    private final MusicProvider mProvider;
+
+    // Current epoch: a permutation of the rows [mEpochStart, mEpochStart + its size)
+    private long mSeed;
+    private int mEpochStart;
+    private FeistelPermutation mPermutation;
+    private int mPosition;
+    // Track ID of the last song drawn
+    private long mLastDrawn;
+
+    // Weighted draws
+    private final Random mRandom;
+    private final BitSet mDrawn = new BitSet();
+    private int mDrawnCount;
+
+    /**
+     * @param provider      Music provider
+     * @param seed          Seed of the current epoch.
+     * @param epochStart    First row of the current epoch.
+     * @param epochSize     Number of rows in the current epoch, 0 to start a new one.
+     * @param position      Position in the current epoch.
+     * @param lastDrawn     Track ID of the last song drawn.
+     */
+    LazyShuffle(MusicProvider provider, long seed, int epochStart, int epochSize, int position,
+                long lastDrawn) {
+        mProvider = provider;
+        mSeed = seed;
+        mEpochStart = epochStart;
+        mPosition = position;
+        mLastDrawn = lastDrawn;
+        if (epochSize > 0) {
+            mPermutation = new FeistelPermutation(epochSize, seed);
+            if (position > 0 && !isLastDrawn(mEpochStart + mPermutation.get(position - 1))) {
+                // The rows have changed since the shuffle was saved
+                mPermutation = null;
+                mEpochStart = 0;
+                mPosition = 0;
+                mSeed = nextSeed(seed);
+            }
+        }
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Draw the next song.
+     * @return  The description of the song, or null if the catalog is empty.
+     */
+    public MediaDescription next() {
+        MusicProvider.Catalog catalog = mProvider.getCatalog();
+        ShuffleSampler sampler = catalog.mSampler;
+        int size = sampler.size();
+        if (size == 0) {
+            return null;
+        }
+        int row = sampler.getWeight() == ShuffleWeight.UNIFORM
+                ? nextInPermutation(size) : nextWeighted(sampler, size);
+        mLastDrawn = catalog.mTracks.getTrackId(row);
+        return catalog.mTracks.getDescription(row);
+    }
+
+    /**
+     * @return  Number of songs in the catalog that haven't been drawn yet.
+     */
+    public int getRemaining() {
+        int size = mProvider.getCatalog().mSampler.size();
+        if (mProvider.getShuffleWeight() != ShuffleWeight.UNIFORM) {
+            return Math.max(size - mDrawnCount, 0);
+        }
+        if (mPermutation == null || mEpochStart + mPermutation.size() > size) {
+            return size;
+        }
+        // Songs left in this epoch, and songs added since it started
+        return mPermutation.size() - mPosition + size - (mEpochStart + mPermutation.size());
+    }
+
+    public long getSeed() {
+        return mSeed;
+    }
+
+    public int getEpochStart() {
+        return mEpochStart;
+    }
+
+    public int getEpochSize() {
+        return mPermutation == null ? 0 : mPermutation.size();
+    }
+
+    public int getPosition() {
+        return mPosition;
+    }
+
+    public long getLastDrawn() {
+        return mLastDrawn;
+    }
+
+    private boolean isLastDrawn(int row) {
+        TrackStore.Snapshot tracks = mProvider.getCatalog().mTracks;
+        return row < tracks.size() && tracks.getTrackId(row) == mLastDrawn;
+    }
+
+    /**
+     * Step a 64-bit LCG, so the next seed follows from this one.
+     */
+    private static long nextSeed(long seed) {
+        return seed * 6364136223846793005L + 1442695040888963407L;
+    }
+
+    private int nextInPermutation(int size) {
+        if (mPermutation == null || mPosition >= mPermutation.size()
+                || mEpochStart + mPermutation.size() > size) {
+            startEpoch(size);
+        }
+        return mEpochStart + mPermutation.get(mPosition++);
+    }
+
+    private void startEpoch(int size) {
+        boolean valid = mPermutation != null && mEpochStart + mPermutation.size() <= size;
+        if (valid && mEpochStart + mPermutation.size() < size) {
+            // Songs were added during the epoch, shuffle them next
+            mEpochStart += mPermutation.size();
+        } else {
+            // Every song has been drawn, start over
+            mEpochStart = 0;
+        }
+        if (mPermutation != null) {
+            mSeed = nextSeed(mSeed);
+        }
+        mPermutation = new FeistelPermutation(size - mEpochStart, mSeed);
+        mPosition = 0;
+    }
+
+    private int nextWeighted(ShuffleSampler sampler, int size) {
+        if (mDrawnCount >= size) {
+            // Every song has been drawn, start over
+            mDrawn.clear();
+            mDrawnCount = 0;
+        }
+
+        int row = -1;
+        for (int i = 0; i < MAX_REJECTIONS && row < 0; i++) {
+            int sample = sampler.sample(mRandom);
+            if (sample >= 0 && !mDrawn.get(sample)) {
+                row = sample;
+            }
+        }
+        if (row < 0) {
+            // Most songs have been drawn, take the next one left from a random position
+            row = mDrawn.nextClearBit(mRandom.nextInt(size));
+            if (row >= size) {
+                row = mDrawn.nextClearBit(0);
+            }
+        }
+
+        mDrawn.set(row);
+        mDrawnCount++;
+        return row;
+    }
+
+}
@@ -0,0 +1,107 @@
+package co.stevets.music.models;
+
+import android.media.MediaMetadata;
+
+/**
+ * Least recently used cache of the MediaMetadata built for the catalog. It only needs to hold
+ * the tracks around the current position on the queue, so it is small enough that a linear
+ * scan over a few primitive arrays beats hashing and never boxes the key.
+ *
+ * Every removal bumps a version. Metadata is only cached if nothing was removed since the
+ * reader took the version, before reading the catalog it built the metadata from, so metadata
+ * built from a catalog older than a removal never gets back in.
+ */
+final class MetadataCache {
+
+    private final long[] mTrackIds;
+    private final MediaMetadata[] mValues;
+    private final long[] mLastUsed;
+    private int mSize;
+    private long mClock;
+    private long mVersion;
+
+    /**
+     * @param capacity  Maximum number of tracks kept in the cache.
+     */
+    MetadataCache(int capacity) {
+        mTrackIds = new long[capacity];
+        mValues = new MediaMetadata[capacity];
+        mLastUsed = new long[capacity];
+    }
+
+    /**
+     * @param trackId   Stable ID of the song
+     * @return          The cached metadata, or null if it isn't cached.
+     */
+    synchronized MediaMetadata get(long trackId) {
+        int i = indexOf(trackId);
+        if (i < 0) {
+            return null;
+        }
+        mLastUsed[i] = ++mClock;
+        return mValues[i];
+    }
+
+    /**
+     * @return  The version to pass to {@link #put}, taken before reading the catalog.
+     */
+    synchronized long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Cache the metadata of a track, evicting the least recently used track if full.
+     * @param trackId   Stable ID of the song
+     * @param metadata  Metadata of the song
+     * @param version   Version taken before reading the catalog; nothing is cached if tracks
+     *                  were removed since.
+     */
+    synchronized void put(long trackId, MediaMetadata metadata, long version) {
+        if (version != mVersion) {
+            return;
+        }
+        int i = indexOf(trackId);
+        if (i < 0) {
+            if (mSize < mTrackIds.length) {
+                i = mSize++;
+            } else {
+                i = 0;
+                for (int j = 1; j < mSize; j++) {
+                    if (mLastUsed[j] < mLastUsed[i]) {
+                        i = j;
+                    }
+                }
+            }
+            mTrackIds[i] = trackId;
+        }
+        mValues[i] = metadata;
+        mLastUsed[i] = ++mClock;
+    }
+
+    /**
+     * Drop a track whose metadata has changed.
+     * @param trackId   Stable ID of the song
+     */
+    synchronized void remove(long trackId) {
+        mVersion++;
+        int i = indexOf(trackId);
+        if (i >= 0) {
+            // Move the last entry into the hole
+            mSize--;
+            mTrackIds[i] = mTrackIds[mSize];
+            mValues[i] = mValues[mSize];
+            mLastUsed[i] = mLastUsed[mSize];
+            mValues[mSize] = null;
+        }
+    }
+
+    private int indexOf(long trackId) {
+        for (int i = 0; i < mSize; i++) {
+            if (mTrackIds[i] == trackId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
@@ -1,39 +1,113 @@
 package co.stevets.music.models;
 
 
+import android.media.MediaDescription;
 import android.media.MediaMetadata;
+import android.util.Log;
 
+import com.google.gson.stream.JsonReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import co.stevets.music.utils.Common;
+import co.stevets.music.utils.IntArrayList;
+import co.stevets.music.utils.LongIntHashMap;
 
 /**
  * Music provider to manage the songs in memory.
- * In the future these will be stored on disk.
+ * The catalog is also written to a snapshot on disk, which is used on the next start until
+ * the songs have been downloaded again.
+ *
+ * The provider is safe to use from any thread. Readers work on an immutable {@link Catalog}
+ * view that is republished every time songs are added, so they never take a lock and never see
+ * a partially added page. Tracks are kept in a column-oriented {@link TrackStore}, and
+ * MediaMetadata is only built when a song is requested. The metadata of the last few songs
+ * requested, which are the songs around the current position on the queue, is cached.
+ *
+ * Every track is stored once, however many times it is downloaded. Tracks are matched on their
+ * stable track ID or on their normalized artist and title, and known tracks are updated in
+ * place instead of being added again.
+ *
+ * Tracks can also be queried by artist, by date posted and by loved count through a
+ * {@link CatalogIndex} that is updated with every batch of songs added, and searched by the
+ * words of their title and artist through a {@link SearchIndex}. Shuffles can favour popular
+ * songs through a {@link ShuffleSampler}. The indexes are compacted on a background thread.
+ * Until the network catalog is available, these queries are answered from a catalog built
+ * from the snapshot on the same thread.
  */
 public class MusicProvider {
 
     public static final String TAG = "MusicProvider";
 
-    // Categorized caches for music track data:
-    private final HashMap<String, List<MediaMetadata>> mMusicListByPage;
-    private final HashMap<String, MediaMetadata> mMusicListById;
-    private final HashSet<String> mFavoriteTracks;
+    // Number of songs parsed before they are published to readers while streaming
+    private static final int INGEST_BATCH_SIZE = 16;
+
+    private static final SongTypeAdapter SONG_ADAPTER = new SongTypeAdapter();
+
+    // Number of songs whose metadata is kept: the current song and a few on either side of it
+    private static final int METADATA_CACHE_SIZE = 16;
+
+    // Draws per song before a weighted shuffle stops sampling and places the rest uniformly
+    private static final int MAX_DRAWS_PER_SONG = 4;
+
+    // How long the background thread is kept around once idle
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    // Current catalog, replaced as a whole when songs are added
+    private volatile Catalog mCatalog;
+    private final Set<String> mFavoriteTracks;
+
+    // Serializes writers; readers only read mCatalog
+    private final Object mWriteLock = new Object();
+
+    // Writer state, only used while holding mWriteLock:
+    private final TrackStore mStore = new TrackStore();
+    private final HashMap<String, IntArrayList> mRowsByPage = new HashMap<>();
+    // Rows by hash of the normalized artist and title
+    private final LongIntHashMap mRowsByName = new LongIntHashMap();
+    // Whether a compaction of the indexes is scheduled
+    private boolean mCompacting;
+
+    // Recently requested songs
+    private final MetadataCache mMetadataCache = new MetadataCache(METADATA_CACHE_SIZE);
 
     enum State {
         NON_INITIALIZED, INITIALIZING, INITIALIZED;
     }
 
-    private State mCurrentState = State.NON_INITIALIZED;
+    private volatile State mCurrentState = State.NON_INITIALIZED;
+
+    // Catalog from the previous session, used until the network catalog is available
+    private volatile CatalogSnapshot mSnapshot;
+    // Catalog built from the snapshot, to query it the same way; null until it is built
+    private volatile Catalog mSnapshotCatalog;
 
+    // Builds the snapshot catalog and compacts the indexes
+    private final ThreadPoolExecutor mExecutor;
 
     public MusicProvider() {
-        mMusicListByPage = new HashMap<>();
-        mMusicListById = new HashMap<>();
-        mFavoriteTracks = new HashSet<>();
+        mCatalog = new Catalog(mStore.snapshot(), new HashMap<String, TrackList>(),
+                CatalogIndex.EMPTY, SearchIndex.EMPTY, new ShuffleSampler(ShuffleWeight.UNIFORM));
+        mFavoriteTracks = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        mExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
     }
 
     /**
@@ -41,10 +115,11 @@ public class MusicProvider {
      * @return  Iterator over the list of pages.
      */
     public Iterable<String> getPages() {
+        CatalogSnapshot snapshot = mSnapshot;
         if (mCurrentState != State.INITIALIZED) {
-            return new ArrayList<>(0);
+            return snapshot != null ? snapshot.getPages() : new ArrayList<String>(0);
         }
-        return mMusicListByPage.keySet();
+        return mCatalog.mMusicListByPage.keySet();
     }
 
     /**
@@ -52,10 +127,35 @@ public class MusicProvider {
      * @return  An iterator over the list of songs on the specified page.
      */
     public Iterable<MediaMetadata> getMusicsByPage(String page) {
-        if (mCurrentState != State.INITIALIZED || !mMusicListByPage.containsKey(page)) {
+        CatalogSnapshot snapshot = mSnapshot;
+        if (mCurrentState != State.INITIALIZED && snapshot != null) {
+            return snapshot.getMusicsByPage(page);
+        }
+        TrackList list = mCatalog.mMusicListByPage.get(page);
+        if (mCurrentState != State.INITIALIZED || list == null) {
+            return new ArrayList<>();
+        }
+        return list;
+    }
+
+    /**
+     * Get descriptions of the songs on a specified page, without building their metadata.
+     * @return  An iterator over the descriptions of the songs on the specified page.
+     */
+    public Iterable<MediaDescription> getDescriptionsByPage(String page) {
+        CatalogSnapshot snapshot = mSnapshot;
+        if (mCurrentState != State.INITIALIZED && snapshot != null) {
+            List<MediaDescription> descriptions = new ArrayList<>();
+            for (MediaMetadata track : snapshot.getMusicsByPage(page)) {
+                descriptions.add(track.getDescription());
+            }
+            return descriptions;
+        }
+        TrackList list = mCatalog.mMusicListByPage.get(page);
+        if (mCurrentState != State.INITIALIZED || list == null) {
             return new ArrayList<>();
         }
-        return mMusicListByPage.get(page);
+        return list.descriptions();
     }
 
     /**
@@ -64,7 +164,185 @@ public class MusicProvider {
      * @return The media metadata of the specified song.
      */
     public MediaMetadata getMusic(String mediaId) {
-        return mMusicListById.get(mediaId);
+        long trackId;
+        try {
+            trackId = Long.parseLong(mediaId);
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "getMusic. Invalid song ID: " + mediaId);
+            return null;
+        }
+        return getMusic(trackId);
+    }
+
+    /**
+     * Get song with the specified ID.
+     * @param trackId   Stable 64-bit song ID, see {@link Song#getTrackId()}.
+     * @return The media metadata of the specified song.
+     */
+    public MediaMetadata getMusic(long trackId) {
+        long version = mMetadataCache.getVersion();
+        TrackStore.Snapshot tracks = mCatalog.mTracks;
+        int row = tracks.getRow(trackId);
+        if (row != LongIntHashMap.NO_VALUE) {
+            // Cache by the ID the song was added with, other IDs resolve to the same row
+            long canonicalId = tracks.getTrackId(row);
+            MediaMetadata track = mMetadataCache.get(canonicalId);
+            if (track == null) {
+                track = tracks.getMetadata(row);
+                mMetadataCache.put(canonicalId, track, version);
+            }
+            return track;
+        }
+        // The queue may still hold songs from the previous session
+        CatalogSnapshot snapshot = mSnapshot;
+        return snapshot != null ? snapshot.getMusic(trackId) : null;
+    }
+
+    /**
+     * Get the songs of an artist.
+     * @param artist    Artist name, as sent by Hype Machine.
+     * @return          The songs of the artist, in the order they were added.
+     */
+    public List<MediaMetadata> getMusicsByArtist(String artist) {
+        Catalog catalog = getQueryCatalog();
+        int code = catalog.mTracks.findArtist(artist);
+        return getMusics(catalog.mTracks, catalog.mIndex.getByArtist(catalog.mTracks, code));
+    }
+
+    /**
+     * Get the most recently posted songs.
+     * @param count Maximum number of songs.
+     * @return      The songs, newest first.
+     */
+    public List<MediaMetadata> getLatestMusics(int count) {
+        Catalog catalog = getQueryCatalog();
+        return getMusics(catalog.mTracks, catalog.mIndex.getLatest(catalog.mTracks, count));
+    }
+
+    /**
+     * Get the most loved songs posted since a date, e.g. the 50 most loved songs of the last
+     * 3 days.
+     * @param count Maximum number of songs.
+     * @param since Earliest date posted, in seconds since the epoch.
+     * @return      The songs, most loved first.
+     */
+    public List<MediaMetadata> getMostLovedMusics(int count, long since) {
+        Catalog catalog = getQueryCatalog();
+        int sinceSeconds = (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, since));
+        return getMusics(catalog.mTracks,
+                catalog.mIndex.getMostLoved(catalog.mTracks, count, sinceSeconds));
+    }
+
+    /**
+     * Search songs by the words of their title and artist. The last word may be incomplete.
+     * @param query Words to search.
+     * @param limit Maximum number of songs.
+     * @return      Descriptions of the songs, best match first.
+     */
+    public List<MediaDescription> searchMusic(String query, int limit) {
+        Catalog catalog = getQueryCatalog();
+        int[] rows = catalog.mSearchIndex.search(catalog.mTracks, query, limit);
+        List<MediaDescription> descriptions = new ArrayList<>(rows.length);
+        for (int row : rows) {
+            descriptions.add(catalog.mTracks.getDescription(row));
+        }
+        return descriptions;
+    }
+
+    /**
+     * Get the weight used by {@link #getWeightedShuffle}.
+     */
+    public ShuffleWeight getShuffleWeight() {
+        return mCatalog.mSampler.getWeight();
+    }
+
+    /**
+     * Change how often songs come up in {@link #getWeightedShuffle}. Weighs every song again.
+     * @param weight    Weight of every song
+     */
+    public void setShuffleWeight(ShuffleWeight weight) {
+        synchronized (mWriteLock) {
+            Catalog catalog = mCatalog;
+            if (catalog.mSampler.getWeight() == weight) {
+                return;
+            }
+            mCatalog = new Catalog(catalog.mTracks, catalog.mMusicListByPage, catalog.mIndex,
+                    catalog.mSearchIndex, ShuffleSampler.build(catalog.mTracks, weight));
+        }
+    }
+
+    /**
+     * Shuffle every song in the catalog, songs with a larger {@link ShuffleWeight} tending to
+     * come first. Songs are drawn in O(1) each; once most draws land on songs that were already
+     * drawn, the rest are placed in uniform random order.
+     * @param random    Source of randomness
+     * @return          Descriptions of every song, in shuffled order.
+     */
+    public List<MediaDescription> getWeightedShuffle(Random random) {
+        Catalog catalog = mCatalog;
+        ShuffleSampler sampler = catalog.mSampler;
+        int size = sampler.size();
+        List<MediaDescription> descriptions = new ArrayList<>(size);
+        BitSet drawn = new BitSet(size);
+
+        for (long draws = (long) size * MAX_DRAWS_PER_SONG;
+             draws > 0 && descriptions.size() < size; draws--) {
+            int row = sampler.sample(random);
+            if (row >= 0 && !drawn.get(row)) {
+                drawn.set(row);
+                descriptions.add(catalog.mTracks.getDescription(row));
+            }
+        }
+
+        // The songs that weren't drawn are mostly the ones with the lowest weights
+        int placed = descriptions.size();
+        for (int row = drawn.nextClearBit(0); row < size; row = drawn.nextClearBit(row + 1)) {
+            descriptions.add(catalog.mTracks.getDescription(row));
+        }
+        Collections.shuffle(descriptions.subList(placed, descriptions.size()), random);
+        return descriptions;
+    }
+
+    /**
+     * Start an endless shuffle of the catalog, see {@link LazyShuffle}.
+     * @param seed  Seed of the shuffle.
+     * @return      The shuffle.
+     */
+    public LazyShuffle newShuffle(long seed) {
+        return new LazyShuffle(this, seed, 0, 0, 0, 0);
+    }
+
+    /**
+     * Resume a shuffle from the state returned by its getters.
+     * @return  The shuffle.
+     */
+    public LazyShuffle resumeShuffle(long seed, int epochStart, int epochSize, int position,
+                                     long lastDrawn) {
+        return new LazyShuffle(this, seed, epochStart, epochSize, position, lastDrawn);
+    }
+
+    /**
+     * @return  The current catalog.
+     */
+    Catalog getCatalog() {
+        return mCatalog;
+    }
+
+    /**
+     * @return  The catalog queries are answered from: the current catalog once songs have been
+     *          downloaded, before that the catalog built from the snapshot, if it is ready.
+     */
+    private Catalog getQueryCatalog() {
+        Catalog snapshot = mSnapshotCatalog;
+        return mCurrentState != State.INITIALIZED && snapshot != null ? snapshot : mCatalog;
+    }
+
+    private static List<MediaMetadata> getMusics(TrackStore.Snapshot tracks, int[] rows) {
+        List<MediaMetadata> musics = new ArrayList<>(rows.length);
+        for (int row : rows) {
+            musics.add(tracks.getMetadata(row));
+        }
+        return musics;
     }
 
     /**
@@ -80,6 +358,13 @@ public class MusicProvider {
         }
     }
 
+    /**
+     * @return  Song IDs of the favourites.
+     */
+    public Set<String> getFavorites() {
+        return new HashSet<>(mFavoriteTracks);
+    }
+
     /**
      * Check if the a song is a favourite.
      * @param musicId   Song ID
@@ -90,51 +375,357 @@ public class MusicProvider {
     }
 
     /**
-     * Check if music provider has been initialized.
+     * Check if music provider has been initialized, either from the network or from the
+     * snapshot of the previous session.
      * @return True if the music provider has been initialized, false otherwise.
      */
     public boolean isInitialized() {
+        return mCurrentState == State.INITIALIZED || mSnapshot != null;
+    }
+
+    /**
+     * Check if songs have been downloaded during this session.
+     * @return True if the catalog has been loaded from the network, false otherwise.
+     */
+    public boolean hasNetworkCatalog() {
         return mCurrentState == State.INITIALIZED;
     }
 
+    /**
+     * Load the catalog saved by {@link #saveSnapshot}. The file is memory-mapped, so this
+     * returns without parsing the songs.
+     * @param file  Snapshot file.
+     */
+    public void loadSnapshot(File file) {
+        final CatalogSnapshot snapshot = CatalogSnapshot.open(file);
+        mSnapshot = snapshot;
+        Log.d(TAG, "loadSnapshot. loaded? " + (snapshot != null));
+        if (snapshot != null) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    indexSnapshot(snapshot);
+                }
+            });
+        }
+    }
+
+    /**
+     * Build a catalog from the songs of the snapshot, so it can be queried by artist, date,
+     * loved count and words like the network catalog. Runs on the background thread.
+     */
+    private void indexSnapshot(CatalogSnapshot snapshot) {
+        if (mCurrentState == State.INITIALIZED) {
+            return;
+        }
+        TrackStore store = new TrackStore();
+        int[] rows = new int[snapshot.getRecordCount()];
+        for (int record = 0; record < rows.length; record++) {
+            // Songs on several pages are stored once per page
+            long trackId = snapshot.getTrackId(record);
+            if (store.getRow(trackId) == LongIntHashMap.NO_VALUE) {
+                store.add(snapshot.getSong(record), trackId);
+            }
+        }
+        for (int row = 0; row < store.size(); row++) {
+            rows[row] = row;
+        }
+        TrackStore.Snapshot tracks = store.snapshot();
+        Catalog catalog = new Catalog(tracks, new HashMap<String, TrackList>(),
+                CatalogIndex.EMPTY.withRows(tracks, rows, tracks.size()),
+                SearchIndex.EMPTY.withRows(tracks, rows, tracks.size()),
+                new ShuffleSampler(ShuffleWeight.UNIFORM));
+        synchronized (mWriteLock) {
+            // Songs may have been downloaded in the meantime
+            if (mCurrentState != State.INITIALIZED) {
+                mSnapshotCatalog = catalog;
+            }
+        }
+        Log.d(TAG, "indexSnapshot. songs: " + tracks.size());
+    }
+
+    /**
+     * Schedule a compaction of the indexes of the current catalog if they need one and none
+     * is scheduled. Must be called while holding mWriteLock.
+     */
+    private void scheduleCompaction() {
+        if (mCompacting || !(mCatalog.mIndex.needsCompaction()
+                || mCatalog.mSearchIndex.needsCompaction())) {
+            return;
+        }
+        mCompacting = true;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                compact();
+            }
+        });
+    }
+
+    /**
+     * Compact the indexes of the current catalog without holding the write lock, then publish
+     * them with the songs added in the meantime. Runs on the background thread.
+     */
+    private void compact() {
+        Catalog catalog = mCatalog;
+        CatalogIndex index = catalog.mIndex.needsCompaction()
+                ? catalog.mIndex.compact(catalog.mTracks) : catalog.mIndex;
+        SearchIndex searchIndex = catalog.mSearchIndex.needsCompaction()
+                ? catalog.mSearchIndex.compact() : catalog.mSearchIndex;
+        synchronized (mWriteLock) {
+            Catalog current = mCatalog;
+            mCatalog = new Catalog(current.mTracks, current.mMusicListByPage,
+                    current.mIndex.withCompacted(catalog.mIndex, index),
+                    current.mSearchIndex.withCompacted(catalog.mSearchIndex, searchIndex),
+                    current.mSampler);
+            mCompacting = false;
+            scheduleCompaction();
+        }
+    }
+
+    /**
+     * Save the catalog to disk so it can be used on the next start.
+     * @param file  Snapshot file.
+     */
+    public void saveSnapshot(File file) {
+        if (mCurrentState != State.INITIALIZED) {
+            return;
+        }
+        try {
+            CatalogSnapshot.write(file, mCatalog.mMusicListByPage);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to save catalog snapshot. Error: " + e);
+        }
+    }
+
     /**
      * Add songs from a Hype Machine page into the media catalog.
+     * Songs that are already in the catalog, on this page or any other, are updated in place.
      * @param page      Name of the Hype Machine page.
      * @param songs     List of songs on the page.
      */
     public void addMediaCatalog(final String page, final List<Song> songs) {
-        mCurrentState = State.INITIALIZING;
-        List<MediaMetadata> list = mMusicListByPage.get(page);
-        if (list == null) {
-            list = new ArrayList<>();
+        synchronized (mWriteLock) {
+            if (mCurrentState == State.NON_INITIALIZED) {
+                mCurrentState = State.INITIALIZING;
+            }
+
+            IntArrayList pageRows = mRowsByPage.get(page);
+            if (pageRows == null) {
+                pageRows = new IntArrayList(songs.size());
+                mRowsByPage.put(page, pageRows);
+            }
+
+            // Rows added or updated, to be merged into the indexes
+            int[] touched = new int[songs.size()];
+            int touchedCount = 0;
+            // Songs refreshed, whose cached metadata is dropped once the catalog is published
+            long[] updated = new long[songs.size()];
+            int updatedCount = 0;
+
+            for (Song song : songs) {
+                long trackId = song.getTrackId();
+                long nameHash = getNameHash(song);
+
+                // Look the song up by ID first, then by artist and title
+                int row = mStore.getRow(trackId);
+                if (row == LongIntHashMap.NO_VALUE && nameHash != 0) {
+                    row = mRowsByName.get(nameHash);
+                    if (row != LongIntHashMap.NO_VALUE) {
+                        // Also resolve the new ID to the same song
+                        mStore.addAlias(trackId, row);
+                    }
+                }
+
+                if (row != LongIntHashMap.NO_VALUE) {
+                    // Known song: refresh it, keeping the media ID it was first added with
+                    mStore.update(row, song);
+                    updated[updatedCount++] = mStore.getTrackId(row);
+                } else {
+                    row = mStore.add(song, trackId);
+                    if (nameHash != 0) {
+                        mRowsByName.put(nameHash, row);
+                    }
+                    pageRows.add(row);
+                }
+                touched[touchedCount++] = row;
+            }
+
+            // Publish the new rows
+            TrackStore.Snapshot tracks = mStore.snapshot();
+            HashMap<String, TrackList> byPage = new HashMap<>();
+            for (Map.Entry<String, IntArrayList> entry : mRowsByPage.entrySet()) {
+                IntArrayList rows = entry.getValue();
+                byPage.put(entry.getKey(), new TrackList(rows.array(), rows.size(), tracks));
+            }
+            CatalogIndex index = mCatalog.mIndex.withRows(tracks, touched, touchedCount);
+            SearchIndex searchIndex =
+                    mCatalog.mSearchIndex.withRows(tracks, touched, touchedCount);
+            ShuffleSampler sampler = mCatalog.mSampler.withRows(tracks, touched, touchedCount);
+            mCatalog = new Catalog(tracks, byPage, index, searchIndex, sampler);
+            for (int i = 0; i < updatedCount; i++) {
+                mMetadataCache.remove(updated[i]);
+            }
+            scheduleCompaction();
+
+            mCurrentState = State.INITIALIZED;
+            // The snapshot catalog is no longer queried
+            mSnapshotCatalog = null;
         }
-        for (Song song : songs) {
-            MediaMetadata item = getMetadata(song);
-            list.add(item);
-            mMusicListById.put(item.getDescription().getMediaId(), item);
+    }
+
+    /**
+     * Stream songs from a JSON array into the media catalog. Songs are added in small batches
+     * while they are parsed, so the whole response is never held in memory. This blocks on
+     * the reader, so call it from a worker thread.
+     * @param page      Name of the Hype Machine page.
+     * @param json      Reader over a JSON array of songs. It is closed when done.
+     * @return          Number of songs read.
+     */
+    public int addMediaCatalog(final String page, final Reader json) throws IOException {
+        JsonReader reader = new JsonReader(json);
+        try {
+            List<Song> batch = new ArrayList<>(INGEST_BATCH_SIZE);
+            int count = 0;
+            reader.beginArray();
+            while (reader.hasNext()) {
+                Song song = SONG_ADAPTER.read(reader);
+                if (song == null) {
+                    continue;
+                }
+                batch.add(song);
+                if (batch.size() == INGEST_BATCH_SIZE) {
+                    addMediaCatalog(page, batch);
+                    count += batch.size();
+                    batch.clear();
+                }
+            }
+            reader.endArray();
+            if (!batch.isEmpty()) {
+                addMediaCatalog(page, batch);
+                count += batch.size();
+            }
+            return count;
+        } finally {
+            reader.close();
         }
-        mMusicListByPage.put(page, list);
-        mCurrentState = State.INITIALIZED;
     }
 
     /**
-     * Convert a Song object into MediaMetadata object. Used by the Media Player.
+     * Get the key used to match a song to a song with a different ID: a 64-bit FNV-1a hash of
+     * its artist and title, lower case and without punctuation or spacing.
      * @param song  Song
-     * @return      MediaMetadata version of the song.
-     */
-    private MediaMetadata getMetadata(Song song) {
-        // Since we don't have a unique ID in the server, we fake one using the hashcode of
-        // the music source. In a real world app, this could come from the server.
-        String id = String.valueOf(song.hashCode());
-
-        return new MediaMetadata.Builder()
-                .putString(Common.METADATA_MEDIA_ID, id)
-                .putString(Common.METADATA_SOURCE, song.getUrl())
-                .putString(Common.METADATA_ARTIST, song.getArtist())
-                .putLong(Common.METADATA_DURATION, song.getTime())
-                .putString(Common.METADATA_ALBUM_ART_URL, song.getThumbUrlLarge())
-                .putString(Common.METADATA_TITLE, song.getTitle())
-                .build();
+     * @return      The hash of the normalized name, or 0 if the song has no artist and title.
+     */
+    private static long getNameHash(Song song) {
+        if (song.getArtist() == null && song.getTitle() == null) {
+            return 0;
+        }
+        long hash = 0xcbf29ce484222325L;
+        hash = hashNormalized(hash, song.getArtist());
+        hash = (hash ^ '\n') * 0x100000001b3L;
+        hash = hashNormalized(hash, song.getTitle());
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static long hashNormalized(long hash, String value) {
+        if (value == null) {
+            return hash;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = Character.toLowerCase(value.charAt(i));
+            if (Character.isLetterOrDigit(c)) {
+                hash = (hash ^ c) * 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Immutable view of the media catalog. Never modified once it has been published.
+     */
+    static final class Catalog {
+        final TrackStore.Snapshot mTracks;
+        // Songs first seen on every page
+        final Map<String, TrackList> mMusicListByPage;
+        final CatalogIndex mIndex;
+        final SearchIndex mSearchIndex;
+        final ShuffleSampler mSampler;
+
+        Catalog(TrackStore.Snapshot tracks, Map<String, TrackList> byPage, CatalogIndex index,
+                SearchIndex searchIndex, ShuffleSampler sampler) {
+            mTracks = tracks;
+            mMusicListByPage = Collections.unmodifiableMap(byPage);
+            mIndex = index;
+            mSearchIndex = searchIndex;
+            mSampler = sampler;
+        }
+    }
+
+    /**
+     * Songs of a page. MediaMetadata is built for each song while iterating.
+     */
+    private static final class TrackList implements Iterable<MediaMetadata> {
+        private final int[] mRows;
+        private final int mSize;
+        private final TrackStore.Snapshot mTracks;
+
+        TrackList(int[] rows, int size, TrackStore.Snapshot tracks) {
+            mRows = rows;
+            mSize = size;
+            mTracks = tracks;
+        }
+
+        @Override
+        public Iterator<MediaMetadata> iterator() {
+            return new RowIterator<MediaMetadata>() {
+                @Override
+                MediaMetadata get(int row) {
+                    return mTracks.getMetadata(row);
+                }
+            };
+        }
+
+        /**
+         * @return  The descriptions of the songs, built while iterating.
+         */
+        Iterable<MediaDescription> descriptions() {
+            return new Iterable<MediaDescription>() {
+                @Override
+                public Iterator<MediaDescription> iterator() {
+                    return new RowIterator<MediaDescription>() {
+                        @Override
+                        MediaDescription get(int row) {
+                            return mTracks.getDescription(row);
+                        }
+                    };
+                }
+            };
+        }
+
+        private abstract class RowIterator<T> implements Iterator<T> {
+            private int mNext = 0;
+
+            abstract T get(int row);
+
+            @Override
+            public boolean hasNext() {
+                return mNext < mSize;
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return get(mRows[mNext++]);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        }
     }
 
 }
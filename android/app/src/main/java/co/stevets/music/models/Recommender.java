@@ -0,0 +1,287 @@
+package co.stevets.music.models;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import co.stevets.music.utils.LongIntHashMap;
+import co.stevets.music.utils.SparseMatrix;
+
+/**
+ * On-device item-item recommender. Songs that are completed or favourited close to each other
+ * are taken to be similar, and the similarity of every pair is kept in a {@link SparseMatrix}.
+ * A song's affinity is its similarity to the songs liked most recently, plus a bonus when it
+ * shares their artist.
+ *
+ * Songs are numbered in the order the recommender first sees them, by track ID, so what was
+ * learnt doesn't depend on the order songs come into the catalog. It is saved to a file after
+ * every event and loaded again on the next start.
+ *
+ * Events are applied on a background thread; scoring may run on any thread while they are.
+ */
+public class Recommender {
+
+    private static final String TAG = "Recommender";
+
+    private static final int VERSION = 1;
+
+    // How long the background thread is kept around once idle
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    // Number of recently liked songs that new songs are compared to
+    private static final int HISTORY_SIZE = 16;
+
+    // Most similar songs kept per song
+    private static final int MAX_NEIGHBORS = 32;
+
+    // Strength of the signals
+    private static final float COMPLETED_WEIGHT = 1f;
+    private static final float FAVORITE_WEIGHT = 2f;
+    private static final float SAME_ARTIST_BONUS = 0.5f;
+
+    private final MusicProvider mProvider;
+    private final File mFile;
+    private final SparseMatrix mSimilarity = new SparseMatrix(MAX_NEIGHBORS);
+    private final ThreadPoolExecutor mExecutor;
+
+    // Number of every song seen, by track ID, and the track ID of every number; the array is
+    // replaced when it grows
+    private final LongIntHashMap mSongs = new LongIntHashMap();
+    private volatile long[] mTrackIds = new long[64];
+    private int mSongCount;
+
+    // Numbers of the songs liked most recently, newest last; replaced on every change
+    private volatile int[] mHistory = new int[0];
+
+    /**
+     * @param provider  Music provider the songs are looked up in
+     * @param file      File what was learnt is saved to
+     */
+    public Recommender(MusicProvider provider, File file) {
+        mProvider = provider;
+        mFile = file;
+        mExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * Record that a song was played to the end.
+     * @param mediaId   Song ID
+     */
+    public void onCompleted(String mediaId) {
+        post(mediaId, COMPLETED_WEIGHT);
+    }
+
+    /**
+     * Record that a song was added to favourites.
+     * @param mediaId   Song ID
+     */
+    public void onFavorite(String mediaId) {
+        post(mediaId, FAVORITE_WEIGHT);
+    }
+
+    /**
+     * Score how much songs match what was liked recently. Stops scoring when the time budget
+     * runs out; the songs left unscored get 0, like songs with nothing in common.
+     * @param mediaIds      Song IDs
+     * @param budgetNanos   Time allowed for scoring, in nanoseconds.
+     * @return              Affinity of every song, 0 for none.
+     */
+    public float[] score(List<String> mediaIds, long budgetNanos) {
+        long deadline = System.nanoTime() + budgetNanos;
+        float[] scores = new float[mediaIds.size()];
+        int[] history = mHistory;
+        if (history.length == 0) {
+            return scores;
+        }
+
+        TrackStore.Snapshot tracks = mProvider.getCatalog().mTracks;
+        long[] trackIds = mTrackIds;
+        int[] artists = new int[history.length];
+        for (int i = 0; i < history.length; i++) {
+            int row = tracks.getRow(trackIds[history[i]]);
+            artists[i] = row != LongIntHashMap.NO_VALUE ? tracks.getArtistCode(row) : -1;
+        }
+
+        for (int i = 0; i < scores.length && System.nanoTime() < deadline; i++) {
+            long trackId = getTrackId(mediaIds.get(i));
+            int row = tracks.getRow(trackId);
+            if (row == LongIntHashMap.NO_VALUE) {
+                continue;
+            }
+            int song = mSongs.get(trackId);
+            int artist = tracks.getArtistCode(row);
+            boolean sameArtist = false;
+            float score = 0;
+            for (int j = 0; j < history.length; j++) {
+                // Recent songs count more
+                float recency = (float) (j + 1) / history.length;
+                if (song != LongIntHashMap.NO_VALUE) {
+                    score += recency * mSimilarity.get(history[j], song);
+                }
+                sameArtist |= artist >= 0 && artist == artists[j];
+            }
+            scores[i] = sameArtist ? score + SAME_ARTIST_BONUS : score;
+        }
+        return scores;
+    }
+
+    private void post(final String mediaId, final float weight) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long trackId = getTrackId(mediaId);
+                if (mProvider.getCatalog().mTracks.getRow(trackId) == LongIntHashMap.NO_VALUE) {
+                    Log.d(TAG, "Ignoring event for unknown song " + mediaId);
+                    return;
+                }
+                like(getSong(trackId), weight);
+                save();
+            }
+        });
+    }
+
+    /**
+     * Get the number of a song, numbering it if it is new. Runs on the background thread.
+     */
+    private int getSong(long trackId) {
+        int song = mSongs.get(trackId);
+        if (song == LongIntHashMap.NO_VALUE) {
+            song = mSongCount++;
+            long[] trackIds = mTrackIds;
+            if (song >= trackIds.length) {
+                trackIds = Arrays.copyOf(trackIds, trackIds.length << 1);
+            }
+            trackIds[song] = trackId;
+            mTrackIds = trackIds;
+            mSongs.put(trackId, song);
+        }
+        return song;
+    }
+
+    /**
+     * Make a liked song more similar to the songs liked before it. Runs on the background
+     * thread.
+     */
+    private void like(int song, float weight) {
+        int[] history = mHistory;
+        for (int i = 0; i < history.length; i++) {
+            if (history[i] == song) {
+                continue;
+            }
+            // Songs liked closer together are more similar
+            float delta = weight * (i + 1) / history.length;
+            mSimilarity.add(history[i], song, delta);
+            mSimilarity.add(song, history[i], delta);
+        }
+
+        // Move the song to the end of the history
+        int[] next = new int[history.length + 1];
+        int size = 0;
+        for (int liked : history) {
+            if (liked != song) {
+                next[size++] = liked;
+            }
+        }
+        next[size++] = song;
+        mHistory = Arrays.copyOfRange(next, Math.max(size - HISTORY_SIZE, 0), size);
+    }
+
+    /**
+     * Load what was learnt in previous sessions. Runs on the background thread.
+     */
+    private void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)))) {
+            if (in.readInt() != VERSION) {
+                Log.d(TAG, "Ignoring what was learnt by another version");
+                return;
+            }
+            int songs = in.readInt();
+            for (int i = 0; i < songs; i++) {
+                getSong(in.readLong());
+            }
+            int[] history = new int[in.readInt()];
+            for (int i = 0; i < history.length; i++) {
+                history[i] = in.readInt();
+            }
+            for (int song = 0; song < songs; song++) {
+                int entries = in.readInt();
+                for (int i = 0; i < entries; i++) {
+                    mSimilarity.add(song, in.readInt(), in.readFloat());
+                }
+            }
+            mHistory = history;
+            Log.d(TAG, "Loaded " + songs + " songs");
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load what was learnt", e);
+        }
+    }
+
+    /**
+     * Save what was learnt, replacing the file as a whole. Runs on the background thread.
+     */
+    private void save() {
+        File temp = new File(mFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            long[] trackIds = mTrackIds;
+            int[] history = mHistory;
+            out.writeInt(VERSION);
+            out.writeInt(mSongCount);
+            for (int song = 0; song < mSongCount; song++) {
+                out.writeLong(trackIds[song]);
+            }
+            out.writeInt(history.length);
+            for (int song : history) {
+                out.writeInt(song);
+            }
+            for (int song = 0; song < mSongCount; song++) {
+                int entries = mSimilarity.getEntryCount(song);
+                out.writeInt(entries);
+                for (int i = 0; i < entries; i++) {
+                    out.writeInt(mSimilarity.getColumn(song, i));
+                    out.writeFloat(mSimilarity.getValue(song, i));
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save what was learnt", e);
+            return;
+        }
+        if (!temp.renameTo(mFile)) {
+            Log.e(TAG, "Failed to replace " + mFile);
+        }
+    }
+
+    private static long getTrackId(String mediaId) {
+        try {
+            return Long.parseLong(mediaId);
+        } catch (NumberFormatException e) {
+            // Not a song of the catalog
+            return Long.MIN_VALUE;
+        }
+    }
+
+}
@@ -0,0 +1,391 @@
+package co.stevets.music.models;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import co.stevets.music.utils.IntArrayList;
+
+/**
+ * Inverted index over the words of the titles and artists in the catalog, used to search songs
+ * by prefix. Terms are kept sorted, so the terms starting with a prefix are found by binary
+ * search. Every term has a posting list of the rows it appears in, with a flag for the fields
+ * it appears in.
+ *
+ * Like {@link CatalogIndex}, a search index is immutable, and is kept as a few segments, one
+ * added per batch of rows, so adding a batch only indexes the batch. A search reads every
+ * segment. Once there are more than {@link #MAX_SEGMENTS} segments, {@link #compact} merges
+ * the newest ones into one, off the thread adding rows.
+ */
+final class SearchIndex {
+
+    static final SearchIndex EMPTY = new SearchIndex(new Segment[0]);
+
+    // Number of segments above which the index should be compacted
+    private static final int MAX_SEGMENTS = 8;
+
+    // Initial capacity of the table of rows matched by a search
+    private static final int INITIAL_MATCHES = 64;
+
+    // Fields a term appears in, kept in the low bits of a posting
+    private static final int IN_TITLE = 1;
+    private static final int IN_ARTIST = 2;
+    private static final int FIELD_BITS = 2;
+    private static final int FIELD_MASK = (1 << FIELD_BITS) - 1;
+
+    // Segments, oldest first
+    private final Segment[] mSegments;
+
+    private SearchIndex(Segment[] segments) {
+        mSegments = segments;
+    }
+
+    /**
+     * Build the index that also covers rows that were added or updated.
+     * Rows whose words changed stay listed under their old words too.
+     * Runs in O(k log k) in the words of the k rows.
+     * @param tracks    Tracks, including the new rows.
+     * @param rows      Rows that were added or updated.
+     * @param count     Number of rows in the array.
+     * @return          The new index.
+     */
+    SearchIndex withRows(TrackStore.Snapshot tracks, int[] rows, int count) {
+        // Postings of the batch by term
+        TreeMap<String, IntArrayList> added = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            int row = rows[i];
+            addTerms(added, tokenize(tracks.getTitle(row)), row, IN_TITLE);
+            addTerms(added, tokenize(tracks.getArtist(row)), row, IN_ARTIST);
+        }
+        if (added.isEmpty()) {
+            return this;
+        }
+
+        String[] terms = new String[added.size()];
+        int[][] postings = new int[terms.length][];
+        int size = 0;
+        for (Map.Entry<String, IntArrayList> entry : added.entrySet()) {
+            terms[size] = entry.getKey();
+            IntArrayList list = entry.getValue();
+            int[] values = Arrays.copyOf(list.array(), list.size());
+            Arrays.sort(values);
+            // Merging also joins the postings of a row listed twice in the batch
+            postings[size++] = mergePostings(new int[0], values);
+        }
+        Segment[] segments = Arrays.copyOf(mSegments, mSegments.length + 1);
+        segments[mSegments.length] = new Segment(terms, postings);
+        return new SearchIndex(segments);
+    }
+
+    /**
+     * @return  True if the index has enough segments that {@link #compact} should be called.
+     */
+    boolean needsCompaction() {
+        return mSegments.length > MAX_SEGMENTS;
+    }
+
+    /**
+     * Merge the newest segments into one: the segments from the oldest one that isn't larger
+     * than all the segments after it together. Only reads the index, so it may run on any
+     * thread. Publish the result with {@link #withCompacted}.
+     * @return  The compacted index.
+     */
+    SearchIndex compact() {
+        if (mSegments.length < 2) {
+            return this;
+        }
+        int first = mSegments.length - 2;
+        int newer = 0;
+        for (int i = mSegments.length - 1; i > 0; i--) {
+            newer += mSegments[i].mTerms.length;
+            if (mSegments[i - 1].mTerms.length <= newer) {
+                first = i - 1;
+            }
+        }
+
+        Segment merged = mSegments[first];
+        for (int i = first + 1; i < mSegments.length; i++) {
+            merged = merged.merge(mSegments[i]);
+        }
+        Segment[] segments = Arrays.copyOf(mSegments, first + 1);
+        segments[first] = merged;
+        return new SearchIndex(segments);
+    }
+
+    /**
+     * Build the index that uses a compaction of an older index. Segments added since the
+     * older index are kept as they are.
+     * @param older     Index {@link #compact} was called on, this index or an older one.
+     * @param compacted Index it returned.
+     * @return          The new index, or this index if its segments no longer start with the
+     *                  segments of the older index.
+     */
+    SearchIndex withCompacted(SearchIndex older, SearchIndex compacted) {
+        if (older.mSegments.length > mSegments.length) {
+            return this;
+        }
+        for (int i = 0; i < older.mSegments.length; i++) {
+            if (older.mSegments[i] != mSegments[i]) {
+                return this;
+            }
+        }
+        int added = mSegments.length - older.mSegments.length;
+        Segment[] segments =
+                Arrays.copyOf(compacted.mSegments, compacted.mSegments.length + added);
+        System.arraycopy(mSegments, older.mSegments.length, segments,
+                compacted.mSegments.length, added);
+        return new SearchIndex(segments);
+    }
+
+    /**
+     * Search rows whose title or artist has words starting with the words of a query.
+     * Rows are ranked by how many words of the query they match, whole words counting more
+     * than prefixes, then by loved count.
+     * @param tracks    Tracks the index was built for.
+     * @param query     Words to search, in any order.
+     * @param limit     Maximum number of rows.
+     * @return          Rows, best match first.
+     */
+    int[] search(TrackStore.Snapshot tracks, String query, int limit) {
+        // Scores are accumulated per row over the union of the posting lists, in a table
+        // sized for the rows matched rather than for the catalog
+        Matches matches = new Matches(INITIAL_MATCHES);
+        List<String> words = tokenize(query);
+        for (int word = 0; word < words.size(); word++) {
+            String prefix = words.get(word);
+            for (Segment segment : mSegments) {
+                String[] terms = segment.mTerms;
+                for (int i = segment.lowerBound(prefix);
+                     i < terms.length && terms[i].startsWith(prefix); i++) {
+                    int weight = terms[i].length() == prefix.length() ? 2 : 1;
+                    for (int posting : segment.mPostings[i]) {
+                        // Match in both fields counts twice
+                        int score = (posting & FIELD_MASK) == (IN_TITLE | IN_ARTIST)
+                                ? weight * 2 : weight;
+                        matches.add(posting >>> FIELD_BITS, word, score);
+                    }
+                }
+            }
+        }
+        return matches.top(tracks, limit);
+    }
+
+    /**
+     * Split a string into lower case words of letters and digits.
+     * @param value String, may be null.
+     * @return      The words of the string.
+     */
+    static List<String> tokenize(String value) {
+        List<String> words = new ArrayList<>();
+        if (value == null) {
+            return words;
+        }
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= value.length(); i++) {
+            char c = i < value.length() ? Character.toLowerCase(value.charAt(i)) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                word.append(c);
+            } else if (word.length() > 0) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        return words;
+    }
+
+    private static void addTerms(TreeMap<String, IntArrayList> added, List<String> words,
+                                 int row, int field) {
+        for (String word : words) {
+            IntArrayList postings = added.get(word);
+            if (postings == null) {
+                postings = new IntArrayList(2);
+                added.put(word, postings);
+            }
+            int last = postings.size() - 1;
+            if (last >= 0 && postings.get(last) >>> FIELD_BITS == row) {
+                // Same row, either the same field again or the other field
+                postings.array()[last] |= field;
+            } else {
+                postings.add(row << FIELD_BITS | field);
+            }
+        }
+    }
+
+    /**
+     * Merge two sorted posting lists of a term, keeping them sorted by row.
+     */
+    private static int[] mergePostings(int[] old, int[] values) {
+        int[] result = new int[old.length + values.length];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < old.length || j < values.length) {
+            int posting = j == values.length || (i < old.length && old[i] < values[j])
+                    ? old[i++] : values[j++];
+            if (size > 0 && result[size - 1] >>> FIELD_BITS == posting >>> FIELD_BITS) {
+                // Same row listed again, e.g. an updated row
+                result[size - 1] |= posting;
+            } else {
+                result[size++] = posting;
+            }
+        }
+        return size == result.length ? result : Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Sorted terms of one batch of rows, or of several merged batches, and their postings.
+     */
+    private static final class Segment {
+        final String[] mTerms;
+        // Postings of every term: row << FIELD_BITS | fields, sorted by row
+        final int[][] mPostings;
+
+        Segment(String[] terms, int[][] postings) {
+            mTerms = terms;
+            mPostings = postings;
+        }
+
+        /**
+         * Merge with a newer segment. Postings of the same row under the same term are joined.
+         */
+        Segment merge(Segment newer) {
+            String[] terms = new String[mTerms.length + newer.mTerms.length];
+            int[][] postings = new int[terms.length][];
+            int size = 0;
+            int i = 0;
+            int j = 0;
+            while (i < mTerms.length || j < newer.mTerms.length) {
+                int order = i == mTerms.length ? 1
+                        : j == newer.mTerms.length ? -1 : mTerms[i].compareTo(newer.mTerms[j]);
+                if (order < 0) {
+                    terms[size] = mTerms[i];
+                    postings[size++] = mPostings[i++];
+                } else if (order > 0) {
+                    terms[size] = newer.mTerms[j];
+                    postings[size++] = newer.mPostings[j++];
+                } else {
+                    terms[size] = mTerms[i];
+                    postings[size++] = mergePostings(mPostings[i++], newer.mPostings[j++]);
+                }
+            }
+            return new Segment(Arrays.copyOf(terms, size), Arrays.copyOf(postings, size));
+        }
+
+        int lowerBound(String word) {
+            int low = 0;
+            int high = mTerms.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (mTerms[mid].compareTo(word) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * Scores of the rows matched by a search, in an open-addressing hash table keyed by row.
+     */
+    private static final class Matches {
+        // Row + 1 in every slot, 0 for an empty slot
+        private int[] mKeys;
+        // Score of every row so far
+        private int[] mScores;
+        // Last word of the query matched by every row, and its best score for that word
+        private int[] mWords;
+        private int[] mWordScores;
+        private int mSize;
+
+        Matches(int capacity) {
+            allocate(capacity);
+        }
+
+        /**
+         * Record that a row matches a word of the query. A row matching a word through
+         * several terms gets its best score.
+         */
+        void add(int row, int word, int score) {
+            int slot = find(row);
+            if (mKeys[slot] == 0) {
+                if ((mSize + 1) * 2 > mKeys.length) {
+                    grow();
+                    slot = find(row);
+                }
+                mKeys[slot] = row + 1;
+                mWords[slot] = -1;
+                mSize++;
+            }
+            if (mWords[slot] != word) {
+                mWords[slot] = word;
+                mWordScores[slot] = score;
+                mScores[slot] += score;
+            } else if (score > mWordScores[slot]) {
+                mScores[slot] += score - mWordScores[slot];
+                mWordScores[slot] = score;
+            }
+        }
+
+        /**
+         * Get the best rows by score, then by loved count.
+         */
+        int[] top(TrackStore.Snapshot tracks, int limit) {
+            // Sort (score, loved count, row) keys; scores are small and loved counts are
+            // positive
+            long[] keys = new long[mSize];
+            int size = 0;
+            for (int slot = 0; slot < mKeys.length; slot++) {
+                if (mKeys[slot] == 0) {
+                    continue;
+                }
+                int row = mKeys[slot] - 1;
+                long loved = Math.max(0, Math.min(tracks.getLovedCount(row), (1 << 26) - 1));
+                keys[size++] = ((long) Math.min(mScores[slot], 31) << 58) | (loved << 32) | row;
+            }
+            Arrays.sort(keys);
+            int[] result = new int[Math.max(0, Math.min(limit, keys.length))];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = (int) keys[keys.length - 1 - i];
+            }
+            return result;
+        }
+
+        private int find(int row) {
+            int mask = mKeys.length - 1;
+            int slot = (row * 0x9e3779b9) >>> 1 & mask;
+            while (mKeys[slot] != 0 && mKeys[slot] != row + 1) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void allocate(int capacity) {
+            mKeys = new int[capacity];
+            mScores = new int[capacity];
+            mWords = new int[capacity];
+            mWordScores = new int[capacity];
+        }
+
+        private void grow() {
+            int[] keys = mKeys;
+            int[] scores = mScores;
+            int[] words = mWords;
+            int[] wordScores = mWordScores;
+            allocate(keys.length << 1);
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != 0) {
+                    int slot = find(keys[i] - 1);
+                    mKeys[slot] = keys[i];
+                    mScores[slot] = scores[i];
+                    mWords[slot] = words[i];
+                    mWordScores[slot] = wordScores[i];
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+package co.stevets.music.models;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import co.stevets.music.utils.AliasTable;
+
+/**
+ * Picks rows of the catalog at random, in proportion to their {@link ShuffleWeight}.
+ *
+ * Rows are split into blocks of {@link #BLOCK_SIZE} rows, each with its own alias table, and a
+ * small alias table picks the block. Adding songs only rebuilds the blocks they fall in and
+ * the table of blocks, so the cost of an ingest batch doesn't grow with the catalog, and
+ * sampling stays O(1).
+ *
+ * Like {@link CatalogIndex}, a sampler is immutable; adding rows builds a new sampler that
+ * shares the blocks that didn't change.
+ */
+final class ShuffleSampler {
+
+    static final int BLOCK_SIZE = 1024;
+
+    private final ShuffleWeight mWeight;
+    // Number of rows covered
+    private final int mSize;
+    private final AliasTable[] mBlocks;
+    private final AliasTable mBlockTable;
+
+    ShuffleSampler(ShuffleWeight weight) {
+        this(weight, 0, new AliasTable[0]);
+    }
+
+    private ShuffleSampler(ShuffleWeight weight, int size, AliasTable[] blocks) {
+        mWeight = weight;
+        mSize = size;
+        mBlocks = blocks;
+        double[] blockWeights = new double[blocks.length];
+        for (int i = 0; i < blocks.length; i++) {
+            blockWeights[i] = blocks[i].getTotalWeight();
+        }
+        mBlockTable = new AliasTable(blockWeights);
+    }
+
+    ShuffleWeight getWeight() {
+        return mWeight;
+    }
+
+    /**
+     * Build the sampler that also covers rows that were added or updated.
+     * @param tracks    Tracks, including the new rows.
+     * @param rows      Rows that were added or updated.
+     * @param count     Number of rows in the array.
+     * @return          The new sampler.
+     */
+    ShuffleSampler withRows(TrackStore.Snapshot tracks, int[] rows, int count) {
+        if (count == 0) {
+            return this;
+        }
+        int size = mSize;
+        for (int i = 0; i < count; i++) {
+            size = Math.max(size, rows[i] + 1);
+        }
+        int blockCount = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        AliasTable[] blocks = Arrays.copyOf(mBlocks, blockCount);
+
+        // Rebuild the blocks with changed rows, and the blocks that didn't exist
+        boolean[] changed = new boolean[blockCount];
+        for (int i = 0; i < count; i++) {
+            changed[rows[i] / BLOCK_SIZE] = true;
+        }
+        for (int block = 0; block < blockCount; block++) {
+            if (changed[block] || blocks[block] == null) {
+                blocks[block] = buildBlock(tracks, block, size);
+            }
+        }
+        return new ShuffleSampler(mWeight, size, blocks);
+    }
+
+    /**
+     * Build a sampler over all the rows with another weight.
+     * @param tracks    Tracks
+     * @param weight    Weight of every song
+     * @return          The new sampler.
+     */
+    static ShuffleSampler build(TrackStore.Snapshot tracks, ShuffleWeight weight) {
+        int size = tracks.size();
+        AliasTable[] blocks = new AliasTable[(size + BLOCK_SIZE - 1) / BLOCK_SIZE];
+        ShuffleSampler empty = new ShuffleSampler(weight);
+        for (int block = 0; block < blocks.length; block++) {
+            blocks[block] = empty.buildBlock(tracks, block, size);
+        }
+        return new ShuffleSampler(weight, size, blocks);
+    }
+
+    /**
+     * Pick a row in proportion to its weight.
+     * @param random    Source of randomness
+     * @return          The row, or -1 if there are no rows.
+     */
+    int sample(Random random) {
+        int block = mBlockTable.sample(random);
+        if (block < 0) {
+            return -1;
+        }
+        return block * BLOCK_SIZE + mBlocks[block].sample(random);
+    }
+
+    /**
+     * @return  Number of rows that can be picked.
+     */
+    int size() {
+        return mSize;
+    }
+
+    private AliasTable buildBlock(TrackStore.Snapshot tracks, int block, int size) {
+        int first = block * BLOCK_SIZE;
+        double[] weights = new double[Math.min(BLOCK_SIZE, size - first)];
+        for (int i = 0; i < weights.length; i++) {
+            int row = first + i;
+            weights[i] = mWeight.getWeight(tracks.getLovedCount(row), tracks.getPostedCount(row));
+        }
+        return new AliasTable(weights);
+    }
+
+}
@@ -0,0 +1,42 @@
+package co.stevets.music.models;
+
+/**
+ * How often a song comes up when shuffling, relative to the other songs.
+ * Counts are damped with a logarithm, so hits come up more often without drowning out
+ * everything else.
+ */
+public enum ShuffleWeight {
+
+    // Every song as often as any other
+    UNIFORM {
+        @Override
+        public double getWeight(int lovedCount, int postedCount) {
+            return 1;
+        }
+    },
+
+    // Songs loved by more Hype Machine users come up more often
+    LOVED {
+        @Override
+        public double getWeight(int lovedCount, int postedCount) {
+            return 1 + Math.log1p(Math.max(lovedCount, 0));
+        }
+    },
+
+    // Songs posted by more blogs come up more often
+    POSTED {
+        @Override
+        public double getWeight(int lovedCount, int postedCount) {
+            return 1 + Math.log1p(Math.max(postedCount, 0));
+        }
+    };
+
+    /**
+     * Get the weight of a song.
+     * @param lovedCount    Number of users who loved the song.
+     * @param postedCount   Number of blogs that posted the song.
+     * @return              Weight of the song, greater than zero.
+     */
+    public abstract double getWeight(int lovedCount, int postedCount);
+
+}
@@ -0,0 +1,115 @@
+package co.stevets.music.models;
+
+import co.stevets.music.utils.LongIntHashMap;
+
+/**
+ * Online logistic regression that predicts whether a song will be skipped early, from its
+ * artist, popularity and length. Every early skip or completion is one step of stochastic
+ * gradient descent over the few features of the song, so learning costs O(1) per event.
+ * Features are hashed into a fixed table of weights, so memory doesn't grow with the catalog.
+ *
+ * Used from the main thread.
+ */
+public class SkipPredictor {
+
+    private static final int WEIGHT_BITS = 12;
+    private static final int WEIGHT_MASK = (1 << WEIGHT_BITS) - 1;
+    private static final float LEARNING_RATE = 0.1f;
+
+    // Feature kinds, hashed together with their value
+    private static final int ARTIST = 1;
+    private static final int LOVED = 2;
+    private static final int POSTED = 3;
+    private static final int MINUTES = 4;
+    private static final int FEATURE_COUNT = 4;
+
+    private final MusicProvider mProvider;
+    private final float[] mWeights = new float[1 << WEIGHT_BITS];
+    private float mBias;
+    private final int[] mFeatures = new int[FEATURE_COUNT];
+
+    public SkipPredictor(MusicProvider provider) {
+        mProvider = provider;
+    }
+
+    /**
+     * Learn that a song was skipped soon after it started.
+     * @param mediaId   Song ID
+     */
+    public void onSkipped(String mediaId) {
+        learn(mediaId, 1);
+    }
+
+    /**
+     * Learn that a song was played to the end.
+     * @param mediaId   Song ID
+     */
+    public void onCompleted(String mediaId) {
+        learn(mediaId, 0);
+    }
+
+    /**
+     * Predict the probability that a song is skipped early.
+     * @param mediaId   Song ID
+     * @return          The probability, or 0.5 for a song that isn't in the catalog.
+     */
+    public float predict(String mediaId) {
+        TrackStore.Snapshot tracks = mProvider.getCatalog().mTracks;
+        int row = getRow(tracks, mediaId);
+        if (row == LongIntHashMap.NO_VALUE) {
+            return 0.5f;
+        }
+        return predict(tracks, row);
+    }
+
+    private float predict(TrackStore.Snapshot tracks, int row) {
+        setFeatures(tracks, row);
+        float z = mBias;
+        for (int feature : mFeatures) {
+            z += mWeights[feature];
+        }
+        return (float) (1 / (1 + Math.exp(-z)));
+    }
+
+    private void learn(String mediaId, int skipped) {
+        TrackStore.Snapshot tracks = mProvider.getCatalog().mTracks;
+        int row = getRow(tracks, mediaId);
+        if (row == LongIntHashMap.NO_VALUE) {
+            return;
+        }
+        // Gradient of the log loss; predict() has set the features of the row
+        float step = LEARNING_RATE * (skipped - predict(tracks, row));
+        mBias += step;
+        for (int feature : mFeatures) {
+            mWeights[feature] += step;
+        }
+    }
+
+    private void setFeatures(TrackStore.Snapshot tracks, int row) {
+        mFeatures[0] = hash(ARTIST, tracks.getArtistCode(row));
+        mFeatures[1] = hash(LOVED, log2(tracks.getLovedCount(row)));
+        mFeatures[2] = hash(POSTED, log2(tracks.getPostedCount(row)));
+        mFeatures[3] = hash(MINUTES, Math.min(tracks.getDuration(row) / 60, 15));
+    }
+
+    private static int log2(int count) {
+        return 32 - Integer.numberOfLeadingZeros(Math.max(count, 0));
+    }
+
+    private static int hash(int kind, int value) {
+        int h = kind * 0x9e3779b9 + value;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h & WEIGHT_MASK;
+    }
+
+    private static int getRow(TrackStore.Snapshot tracks, String mediaId) {
+        try {
+            return tracks.getRow(Long.parseLong(mediaId));
+        } catch (NumberFormatException e) {
+            return LongIntHashMap.NO_VALUE;
+        }
+    }
+
+}
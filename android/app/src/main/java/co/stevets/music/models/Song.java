@@ -9,6 +9,9 @@ import com.google.gson.annotations.SerializedName;
  */
 public class Song {
 
+    @SerializedName("media_id")
+    @Expose
+    private String mediaId;
     @Expose
     private int time;
     @Expose
@@ -42,6 +45,68 @@ public class Song {
     @Expose
     private String thumbUrl;
 
+    /**
+     * 
+     * @return
+     *     The Hype Machine ID of the song
+     */
+    public String getMediaId() {
+        return mediaId;
+    }
+
+    /**
+     * 
+     * @param mediaId
+     *     The Hype Machine ID of the song
+     */
+    public void setMediaId(String mediaId) {
+        this.mediaId = mediaId;
+    }
+
+    /**
+     * A 64-bit ID for the song that stays the same across downloads.
+     * Hype Machine IDs are short lower case base-36 strings (e.g. "29dgt"), so they are
+     * decoded directly into a number. Anything else falls back to a 64-bit FNV-1a hash of the
+     * ID, or of the artist and title if the server didn't send an ID.
+     *
+     * @return
+     *     The stable ID of the song
+     */
+    public long getTrackId() {
+        String key = mediaId;
+        if (isBase36(key)) {
+            return Long.parseLong(key, Character.MAX_RADIX);
+        }
+        if (key == null || key.isEmpty()) {
+            key = artist + " - " + title;
+        }
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        // Keep hashed IDs negative so they never clash with decoded Hype Machine IDs
+        return hash | Long.MIN_VALUE;
+    }
+
+    /**
+     * Check if an ID is 1 to 12 lower case base-36 digits, which decode to a positive long.
+     * Signs and upper case letters would also parse, into negative IDs or IDs shared by
+     * other spellings.
+     */
+    private static boolean isBase36(String key) {
+        if (key == null || key.isEmpty() || key.length() > 12) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'z')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * 
      * @return
@@ -0,0 +1,103 @@
+package co.stevets.music.models;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Reads and writes {@link Song} objects field by field, without reflection.
+ * Field names match the @SerializedName annotations on Song.
+ */
+public class SongTypeAdapter extends TypeAdapter<Song> {
+
+    @Override
+    public Song read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        Song song = new Song();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                // The server sends null for missing values, keep the defaults
+                in.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "media_id":
+                    song.setMediaId(in.nextString());
+                    break;
+                case "time":
+                    song.setTime(in.nextInt());
+                    break;
+                case "url":
+                    song.setUrl(in.nextString());
+                    break;
+                case "date_posted":
+                    song.setDatePosted(in.nextInt());
+                    break;
+                case "loved_count":
+                    song.setLovedCount(in.nextInt());
+                    break;
+                case "thumb_url_medium":
+                    song.setThumbUrlMedium(in.nextString());
+                    break;
+                case "thumb_url_artist":
+                    song.setThumbUrlArtist(in.nextString());
+                    break;
+                case "title":
+                    song.setTitle(in.nextString());
+                    break;
+                case "post_url":
+                    song.setPostUrl(in.nextString());
+                    break;
+                case "artist":
+                    song.setArtist(in.nextString());
+                    break;
+                case "posted_count":
+                    song.setPostedCount(in.nextInt());
+                    break;
+                case "thumb_url_large":
+                    song.setThumbUrlLarge(in.nextString());
+                    break;
+                case "thumb_url":
+                    song.setThumbUrl(in.nextString());
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return song;
+    }
+
+    @Override
+    public void write(JsonWriter out, Song song) throws IOException {
+        if (song == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("media_id").value(song.getMediaId());
+        out.name("time").value(song.getTime());
+        out.name("url").value(song.getUrl());
+        out.name("date_posted").value(song.getDatePosted());
+        out.name("loved_count").value(song.getLovedCount());
+        out.name("thumb_url_medium").value(song.getThumbUrlMedium());
+        out.name("thumb_url_artist").value(song.getThumbUrlArtist());
+        out.name("title").value(song.getTitle());
+        out.name("post_url").value(song.getPostUrl());
+        out.name("artist").value(song.getArtist());
+        out.name("posted_count").value(song.getPostedCount());
+        out.name("thumb_url_large").value(song.getThumbUrlLarge());
+        out.name("thumb_url").value(song.getThumbUrl());
+        out.endObject();
+    }
+
+}
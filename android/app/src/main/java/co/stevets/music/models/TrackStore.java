@@ -0,0 +1,345 @@
+package co.stevets.music.models;
+
+import android.media.MediaDescription;
+import android.media.MediaMetadata;
+import android.net.Uri;
+
+import java.util.Arrays;
+
+import co.stevets.music.utils.Common;
+import co.stevets.music.utils.LongIntHashMap;
+import co.stevets.music.utils.StringDictionary;
+
+/**
+ * Column-oriented storage for the tracks in the catalog. Every track is a row, and every field
+ * is kept in its own array, so a track costs a few ints and strings instead of a Song and a
+ * MediaMetadata. Artist names and thumbnail URL prefixes are dictionary-coded since they repeat
+ * across many tracks. MediaMetadata and MediaDescription are only built when a track is
+ * requested.
+ *
+ * Rows are only ever appended. One thread at a time may add or update rows; other threads read
+ * the store through a {@link Snapshot}, which only sees the rows that existed when it was taken.
+ * Columns are split into chunks of {@link #CHUNK_SIZE} rows, and updating a row that a snapshot
+ * can see copies its chunk first, so a snapshot never sees a row change.
+ */
+final class TrackStore {
+
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int INITIAL_CHUNKS = 4;
+
+    private int mSize;
+    private long[][] mTrackIds;
+    private int[][] mDurations;
+    private int[][] mDatesPosted;
+    private int[][] mLovedCounts;
+    private int[][] mPostedCounts;
+    private int[][] mArtists;
+    private int[][] mThumbPrefixes;
+    private String[][] mThumbNames;
+    private String[][] mTitles;
+    private String[][] mSources;
+
+    // Number of snapshots taken, and the number taken when every chunk was created or copied; a
+    // chunk created or copied before the last snapshot is shared with it
+    private int mGeneration;
+    private int[] mChunkGenerations;
+
+    private final StringDictionary mArtistNames = new StringDictionary();
+    private final StringDictionary mUrlPrefixes = new StringDictionary();
+
+    // Rows by track ID, including the other IDs a track has been seen with
+    private final LongIntHashMap mRowsById = new LongIntHashMap();
+
+    TrackStore() {
+        mTrackIds = new long[INITIAL_CHUNKS][];
+        mDurations = new int[INITIAL_CHUNKS][];
+        mDatesPosted = new int[INITIAL_CHUNKS][];
+        mLovedCounts = new int[INITIAL_CHUNKS][];
+        mPostedCounts = new int[INITIAL_CHUNKS][];
+        mArtists = new int[INITIAL_CHUNKS][];
+        mThumbPrefixes = new int[INITIAL_CHUNKS][];
+        mThumbNames = new String[INITIAL_CHUNKS][];
+        mTitles = new String[INITIAL_CHUNKS][];
+        mSources = new String[INITIAL_CHUNKS][];
+        mChunkGenerations = new int[INITIAL_CHUNKS];
+    }
+
+    /**
+     * Add a track.
+     * @param song      Song
+     * @param trackId   Stable ID of the song
+     * @return          Row of the track.
+     */
+    int add(Song song, long trackId) {
+        int row = mSize;
+        int chunk = row >> CHUNK_SHIFT;
+        if ((row & CHUNK_MASK) == 0) {
+            addChunk(chunk);
+        }
+        // Rows past the size of a snapshot are never read by it, even in a shared chunk
+        mTrackIds[chunk][row & CHUNK_MASK] = trackId;
+        set(row, song);
+        mRowsById.put(trackId, row);
+        mSize++;
+        return row;
+    }
+
+    /**
+     * Refresh the fields of a track with a new copy of the song. The snapshots taken before
+     * keep the old fields.
+     * @param row   Row of the track.
+     * @param song  Song
+     */
+    void update(int row, Song song) {
+        int chunk = row >> CHUNK_SHIFT;
+        if (mChunkGenerations[chunk] != mGeneration) {
+            copyChunk(chunk);
+        }
+        set(row, song);
+    }
+
+    /**
+     * Make another ID resolve to an existing track.
+     * @param trackId   Other ID of the song
+     * @param row       Row of the track.
+     */
+    void addAlias(long trackId, int row) {
+        mRowsById.put(trackId, row);
+    }
+
+    /**
+     * Find a track by ID.
+     * @param trackId   Stable ID of the song
+     * @return          Row of the track, or {@link LongIntHashMap#NO_VALUE}.
+     */
+    int getRow(long trackId) {
+        return mRowsById.get(trackId);
+    }
+
+    long getTrackId(int row) {
+        return mTrackIds[row >> CHUNK_SHIFT][row & CHUNK_MASK];
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Capture the rows added so far, to be read by other threads.
+     */
+    Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot(this);
+        // Every chunk is now shared with the snapshot
+        mGeneration++;
+        return snapshot;
+    }
+
+    private void set(int row, Song song) {
+        int chunk = row >> CHUNK_SHIFT;
+        int i = row & CHUNK_MASK;
+        mDurations[chunk][i] = song.getTime();
+        mDatesPosted[chunk][i] = song.getDatePosted();
+        mLovedCounts[chunk][i] = song.getLovedCount();
+        mPostedCounts[chunk][i] = song.getPostedCount();
+        mArtists[chunk][i] = mArtistNames.encode(song.getArtist());
+        mTitles[chunk][i] = song.getTitle();
+        mSources[chunk][i] = song.getUrl();
+
+        // Split the thumbnail after the last '/', the prefix is the same for many tracks
+        String thumb = song.getThumbUrlLarge();
+        int split = thumb == null ? -1 : thumb.lastIndexOf('/') + 1;
+        mThumbPrefixes[chunk][i] = split > 0
+                ? mUrlPrefixes.encode(thumb.substring(0, split)) : StringDictionary.NO_STRING;
+        mThumbNames[chunk][i] = split > 0 ? thumb.substring(split) : thumb;
+    }
+
+    private void addChunk(int chunk) {
+        if (chunk == mTrackIds.length) {
+            int capacity = chunk << 1;
+            mTrackIds = Arrays.copyOf(mTrackIds, capacity);
+            mDurations = Arrays.copyOf(mDurations, capacity);
+            mDatesPosted = Arrays.copyOf(mDatesPosted, capacity);
+            mLovedCounts = Arrays.copyOf(mLovedCounts, capacity);
+            mPostedCounts = Arrays.copyOf(mPostedCounts, capacity);
+            mArtists = Arrays.copyOf(mArtists, capacity);
+            mThumbPrefixes = Arrays.copyOf(mThumbPrefixes, capacity);
+            mThumbNames = Arrays.copyOf(mThumbNames, capacity);
+            mTitles = Arrays.copyOf(mTitles, capacity);
+            mSources = Arrays.copyOf(mSources, capacity);
+            mChunkGenerations = Arrays.copyOf(mChunkGenerations, capacity);
+        }
+        mTrackIds[chunk] = new long[CHUNK_SIZE];
+        mDurations[chunk] = new int[CHUNK_SIZE];
+        mDatesPosted[chunk] = new int[CHUNK_SIZE];
+        mLovedCounts[chunk] = new int[CHUNK_SIZE];
+        mPostedCounts[chunk] = new int[CHUNK_SIZE];
+        mArtists[chunk] = new int[CHUNK_SIZE];
+        mThumbPrefixes[chunk] = new int[CHUNK_SIZE];
+        mThumbNames[chunk] = new String[CHUNK_SIZE];
+        mTitles[chunk] = new String[CHUNK_SIZE];
+        mSources[chunk] = new String[CHUNK_SIZE];
+        mChunkGenerations[chunk] = mGeneration;
+    }
+
+    /**
+     * Give the store its own copy of a chunk shared with snapshots. Track IDs never change, so
+     * they stay shared.
+     */
+    private void copyChunk(int chunk) {
+        mDurations[chunk] = mDurations[chunk].clone();
+        mDatesPosted[chunk] = mDatesPosted[chunk].clone();
+        mLovedCounts[chunk] = mLovedCounts[chunk].clone();
+        mPostedCounts[chunk] = mPostedCounts[chunk].clone();
+        mArtists[chunk] = mArtists[chunk].clone();
+        mThumbPrefixes[chunk] = mThumbPrefixes[chunk].clone();
+        mThumbNames[chunk] = mThumbNames[chunk].clone();
+        mTitles[chunk] = mTitles[chunk].clone();
+        mSources[chunk] = mSources[chunk].clone();
+        mChunkGenerations[chunk] = mGeneration;
+    }
+
+    /**
+     * Read-only view of the rows that existed when it was taken. The lists of chunks are
+     * copied, and the chunks themselves are never written again where the view can see, so
+     * adding or updating rows later doesn't affect it.
+     */
+    static final class Snapshot {
+        private final int mSize;
+        private final long[][] mTrackIds;
+        private final int[][] mDurations;
+        private final int[][] mDatesPosted;
+        private final int[][] mLovedCounts;
+        private final int[][] mPostedCounts;
+        private final int[][] mArtists;
+        private final int[][] mThumbPrefixes;
+        private final String[][] mThumbNames;
+        private final String[][] mTitles;
+        private final String[][] mSources;
+        private final StringDictionary mArtistNames;
+        private final StringDictionary mUrlPrefixes;
+        private final LongIntHashMap mRowsById;
+
+        private Snapshot(TrackStore store) {
+            int chunks = (store.mSize + CHUNK_MASK) >> CHUNK_SHIFT;
+            mSize = store.mSize;
+            mTrackIds = Arrays.copyOf(store.mTrackIds, chunks);
+            mDurations = Arrays.copyOf(store.mDurations, chunks);
+            mDatesPosted = Arrays.copyOf(store.mDatesPosted, chunks);
+            mLovedCounts = Arrays.copyOf(store.mLovedCounts, chunks);
+            mPostedCounts = Arrays.copyOf(store.mPostedCounts, chunks);
+            mArtists = Arrays.copyOf(store.mArtists, chunks);
+            mThumbPrefixes = Arrays.copyOf(store.mThumbPrefixes, chunks);
+            mThumbNames = Arrays.copyOf(store.mThumbNames, chunks);
+            mTitles = Arrays.copyOf(store.mTitles, chunks);
+            mSources = Arrays.copyOf(store.mSources, chunks);
+            mArtistNames = store.mArtistNames;
+            mUrlPrefixes = store.mUrlPrefixes;
+            mRowsById = store.mRowsById;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        /**
+         * Find a track by ID.
+         * @param trackId   Stable ID of the song
+         * @return          Row of the track, or {@link LongIntHashMap#NO_VALUE}.
+         */
+        int getRow(long trackId) {
+            int row = mRowsById.get(trackId);
+            // Rows added after the snapshot was taken aren't part of it
+            return row < mSize ? row : LongIntHashMap.NO_VALUE;
+        }
+
+        long getTrackId(int row) {
+            return mTrackIds[row >> CHUNK_SHIFT][row & CHUNK_MASK];
+        }
+
+        int getDuration(int row) {
+            return mDurations[row >> CHUNK_SHIFT][row & CHUNK_MASK];
+        }
+
+        int getDatePosted(int row) {
+            return mDatesPosted[row >> CHUNK_SHIFT][row & CHUNK_MASK];
+        }
+
+        int getLovedCount(int row) {
+            return mLovedCounts[row >> CHUNK_SHIFT][row & CHUNK_MASK];
+        }
+
+        int getPostedCount(int row) {
+            return mPostedCounts[row >> CHUNK_SHIFT][row & CHUNK_MASK];
+        }
+
+        int getArtistCode(int row) {
+            return mArtists[row >> CHUNK_SHIFT][row & CHUNK_MASK];
+        }
+
+        String getArtist(int row) {
+            return mArtistNames.decode(getArtistCode(row));
+        }
+
+        /**
+         * Find the code of an artist name.
+         * @param artist    Artist name
+         * @return          Artist code, or {@link StringDictionary#NO_STRING}.
+         */
+        int findArtist(String artist) {
+            return mArtistNames.find(artist);
+        }
+
+        String getTitle(int row) {
+            return mTitles[row >> CHUNK_SHIFT][row & CHUNK_MASK];
+        }
+
+        String getSource(int row) {
+            return mSources[row >> CHUNK_SHIFT][row & CHUNK_MASK];
+        }
+
+        String getThumbUrl(int row) {
+            int chunk = row >> CHUNK_SHIFT;
+            int i = row & CHUNK_MASK;
+            String prefix = mUrlPrefixes.decode(mThumbPrefixes[chunk][i]);
+            return prefix == null ? mThumbNames[chunk][i] : prefix + mThumbNames[chunk][i];
+        }
+
+        /**
+         * Build the MediaMetadata of a track. Used by the Media Player.
+         * @param row   Row of the track.
+         * @return      MediaMetadata version of the track.
+         */
+        MediaMetadata getMetadata(int row) {
+            // The media ID is the stable track ID, so it stays the same across downloads
+            return new MediaMetadata.Builder()
+                    .putString(Common.METADATA_MEDIA_ID, String.valueOf(getTrackId(row)))
+                    .putString(Common.METADATA_SOURCE, getSource(row))
+                    .putString(Common.METADATA_ARTIST, getArtist(row))
+                    .putLong(Common.METADATA_DURATION, getDuration(row))
+                    .putString(Common.METADATA_ALBUM_ART_URL, getThumbUrl(row))
+                    .putString(Common.METADATA_TITLE, getTitle(row))
+                    .putLong(Common.METADATA_DATE_POSTED, getDatePosted(row))
+                    .putLong(Common.METADATA_LOVED_COUNT, getLovedCount(row))
+                    .build();
+        }
+
+        /**
+         * Build the MediaDescription of a track, without building its MediaMetadata.
+         * Used for queue items.
+         * @param row   Row of the track.
+         * @return      MediaDescription version of the track.
+         */
+        MediaDescription getDescription(int row) {
+            String thumb = getThumbUrl(row);
+            return new MediaDescription.Builder()
+                    .setMediaId(String.valueOf(getTrackId(row)))
+                    .setTitle(getTitle(row))
+                    .setSubtitle(getArtist(row))
+                    .setIconUri(thumb == null ? null : Uri.parse(thumb))
+                    .build();
+        }
+    }
+
+}
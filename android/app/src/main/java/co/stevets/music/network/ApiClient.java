@@ -1,21 +1,35 @@
 package co.stevets.music.network;
 
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
 import java.util.List;
 
 import co.stevets.music.models.Song;
+import co.stevets.music.models.SongTypeAdapter;
 import retrofit.Callback;
 import retrofit.RestAdapter;
+import retrofit.client.Response;
+import retrofit.converter.GsonConverter;
 import retrofit.http.GET;
 import retrofit.http.Path;
+import retrofit.http.Streaming;
 
 
 public class ApiClient {
     private static MusicApiInterface sMusicService;
 
-    public static MusicApiInterface getMusicApiClient() {
+    // Called from several loader threads at once, so built once under the class lock
+    public static synchronized MusicApiInterface getMusicApiClient() {
         if (sMusicService == null) {
+            // Parse songs without reflection
+            Gson gson = new GsonBuilder()
+                    .registerTypeAdapter(Song.class, new SongTypeAdapter())
+                    .create();
+
             RestAdapter restAdapter = new RestAdapter.Builder()
                     .setEndpoint("http://music.stevets.co")
+                    .setConverter(new GsonConverter(gson))
                     .build();
 
             sMusicService = restAdapter.create(MusicApiInterface.class);
@@ -28,6 +42,14 @@ public class ApiClient {
         @GET("/popular/3day/{num}")
         void getPopular(@Path("num") int num, Callback<List<Song>> callback);
         @GET("/latest/all/{num}")
-        void getLatest(@Path("num") int num);
+        void getLatest(@Path("num") int num, Callback<List<Song>> callback);
+
+        // Blocking calls that leave the body unread, to be parsed while it streams in
+        @Streaming
+        @GET("/popular/3day/{num}")
+        Response getPopularStream(@Path("num") int num);
+        @Streaming
+        @GET("/latest/all/{num}")
+        Response getLatestStream(@Path("num") int num);
     }
 }
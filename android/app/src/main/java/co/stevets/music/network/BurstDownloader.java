@@ -0,0 +1,172 @@
+package co.stevets.music.network;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import co.stevets.music.models.AudioCache;
+import co.stevets.music.models.CachedAudio;
+
+/**
+ * Downloads whole songs into the {@link AudioCache} as fast as the network allows, instead of
+ * at the pace the media player reads them. The radio can then sleep for the rest of the song,
+ * which the {@link CachingProxy} serves from disk. Only the bytes not cached yet are
+ * downloaded, and once the download overtakes the proxy, the proxy stops downloading too.
+ */
+public class BurstDownloader {
+
+    private static final String TAG = "BurstDownloader";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Told about downloads, on the download thread.
+     */
+    public interface Listener {
+        /**
+         * Called when the songs asked for are done downloading, unless other songs were asked
+         * for meanwhile.
+         * @param mediaIds  Media IDs of the songs
+         * @param complete  True if every song is now cached whole.
+         * @param bytes     Number of bytes downloaded.
+         * @param activeMs  Time spent downloading.
+         */
+        void onBurstFinished(String[] mediaIds, boolean complete, long bytes, long activeMs);
+    }
+
+    private final AudioCache mCache;
+    private final Listener mListener;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    // Incremented for every new list of songs, so the songs of older lists are dropped
+    private volatile int mGeneration;
+
+    public BurstDownloader(AudioCache cache, Listener listener) {
+        mCache = cache;
+        mListener = listener;
+    }
+
+    /**
+     * Download songs whole, in order, instead of the songs asked for before.
+     * @param mediaIds  Media IDs of the songs, current one first.
+     * @param sources   URLs of the songs on their servers
+     */
+    public void download(final String[] mediaIds, final String[] sources) {
+        final int generation = ++mGeneration;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                long bytes = 0;
+                boolean complete = true;
+                for (int i = 0; i < mediaIds.length && generation == mGeneration; i++) {
+                    long downloaded = downloadSong(mediaIds[i], sources[i], generation);
+                    if (downloaded < 0) {
+                        complete = false;
+                    } else {
+                        bytes += downloaded;
+                    }
+                }
+                if (generation == mGeneration) {
+                    mListener.onBurstFinished(mediaIds, complete, bytes,
+                            SystemClock.elapsedRealtime() - start);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop the download in progress, if any.
+     */
+    public void cancel() {
+        mGeneration++;
+    }
+
+    /**
+     * Stop downloading for good.
+     */
+    public void stop() {
+        mGeneration++;
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Download the bytes of a song not cached yet.
+     * @return  Number of bytes downloaded, or -1 if the song isn't cached whole.
+     */
+    private long downloadSong(String key, String source, int generation) {
+        if (!AudioCache.isValidKey(key) || source == null || !source.startsWith("http")) {
+            return -1;
+        }
+        CachedAudio audio = mCache.open(key);
+        HttpURLConnection connection = null;
+        long downloaded = 0;
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = audio.getCachedEnd(0);
+            while (generation == mGeneration && !audio.isComplete()) {
+                long length = audio.getLength();
+                long gapEnd = length >= 0 ? Math.min(audio.getNextCachedStart(position), length)
+                        : Long.MAX_VALUE;
+                connection = CachingProxy.openOrigin(source, position,
+                        gapEnd != Long.MAX_VALUE ? gapEnd - 1 : -1);
+                boolean partial = connection.getResponseCode() == HttpURLConnection.HTTP_PARTIAL;
+                if (length < 0) {
+                    length = CachingProxy.getOriginLength(connection);
+                    if (length < 0) {
+                        throw new IOException("Unknown length for " + source);
+                    }
+                    audio.setLength(length, connection.getContentType(), partial);
+                    gapEnd = Math.min(audio.getNextCachedStart(position), length);
+                }
+
+                // A server that ignores ranges sends the song from its start
+                long connectionPosition = partial ? position : 0;
+                InputStream origin = connection.getInputStream();
+                while (connectionPosition < gapEnd && generation == mGeneration) {
+                    if (connectionPosition >= position && audio.getCachedEnd(position) > position) {
+                        // The proxy got there first
+                        break;
+                    }
+                    int count = origin.read(buffer, 0,
+                            (int) Math.min(buffer.length, gapEnd - connectionPosition));
+                    if (count < 0) {
+                        throw new IOException("Download of " + key + " ended early");
+                    }
+                    audio.write(connectionPosition, buffer, 0, count);
+                    connectionPosition += count;
+                    position = Math.max(position, connectionPosition);
+                    downloaded += count;
+                }
+                connection.disconnect();
+                connection = null;
+
+                // On to the next bytes not cached
+                position = audio.getCachedEnd(position);
+                if (position >= length) {
+                    position = audio.getCachedEnd(0);
+                }
+            }
+            Log.d(TAG, "Downloaded " + downloaded + " bytes of " + key + ", complete="
+                    + audio.isComplete());
+            return audio.isComplete() ? downloaded : -1;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to download " + key + ": " + e);
+            return -1;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            if (downloaded > 0) {
+                audio.save();
+            }
+            mCache.release(audio);
+        }
+    }
+
+}
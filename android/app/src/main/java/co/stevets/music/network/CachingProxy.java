@@ -0,0 +1,415 @@
+package co.stevets.music.network;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import co.stevets.music.models.AudioCache;
+import co.stevets.music.models.CachedAudio;
+
+/**
+ * HTTP server on the loopback interface that the media player streams songs from. Bytes
+ * already in the {@link AudioCache} are served from disk; missing ranges are downloaded from
+ * the song's server, written to the cache and passed on at the same time. Byte-range requests
+ * are supported, so seeking inside cached audio never touches the network, and playing a song
+ * again needs no network at all once it has been played through. Songs saved for offline
+ * listening are served from their own cache.
+ *
+ * Every request is served on its own thread.
+ */
+public class CachingProxy {
+
+    private static final String TAG = "CachingProxy";
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 30000;
+    private static final String DEFAULT_CONTENT_TYPE = "audio/mpeg";
+
+    // Redirects followed to reach a song; followed by hand, as HttpURLConnection doesn't
+    // follow them from http to https
+    private static final int MAX_REDIRECTS = 5;
+    private static final int HTTP_TEMPORARY_REDIRECT = 307;
+    private static final int HTTP_PERMANENT_REDIRECT = 308;
+
+    private final AudioCache mCache;
+    private final AudioCache mSaved;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+
+    // URL of the song's server for every key served
+    private final ConcurrentHashMap<String, String> mSources = new ConcurrentHashMap<>();
+    // Connections to songs' servers held open while serving, by key
+    private final ConcurrentHashMap<String, AtomicInteger> mOriginConnections =
+            new ConcurrentHashMap<>();
+
+    private ServerSocket mServerSocket;
+
+    /**
+     * @param cache Cache songs are streamed through
+     * @param saved Cache of the songs saved for offline listening
+     */
+    public CachingProxy(AudioCache cache, AudioCache saved) {
+        mCache = cache;
+        mSaved = saved;
+    }
+
+    /**
+     * Start listening on a free port of the loopback interface.
+     */
+    public void start() throws IOException {
+        mServerSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        final ServerSocket serverSocket = mServerSocket;
+        Log.d(TAG, "Listening on port " + serverSocket.getLocalPort());
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        mExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        });
+                    } catch (IOException e) {
+                        if (!serverSocket.isClosed()) {
+                            Log.e(TAG, "Failed to accept a connection", e);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop listening and serving.
+     */
+    public void stop() {
+        try {
+            if (mServerSocket != null) {
+                mServerSocket.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close the server socket", e);
+        }
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Get the URL the media player should play a song from.
+     * @param mediaId   Media ID of the song
+     * @param source    URL of the song on its server.
+     * @return          The URL of the song on the proxy, or the source if the song can't be
+     *                  cached.
+     */
+    public String getProxyUrl(String mediaId, String source) {
+        if (mServerSocket == null || mServerSocket.isClosed() || !AudioCache.isValidKey(mediaId)
+                || source == null || !source.startsWith("http")) {
+            return source;
+        }
+        mSources.put(mediaId, source);
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/" + mediaId;
+    }
+
+    /**
+     * Get the number of connections to a song's server held open to serve a player.
+     * @param url   URL the player plays the song from.
+     * @return      Number of connections, or -1 if the URL isn't served by the proxy.
+     */
+    public int getOriginConnections(String url) {
+        ServerSocket serverSocket = mServerSocket;
+        String prefix = serverSocket != null
+                ? "http://127.0.0.1:" + serverSocket.getLocalPort() + "/" : null;
+        if (url == null || prefix == null || !url.startsWith(prefix)) {
+            return -1;
+        }
+        AtomicInteger count = mOriginConnections.get(url.substring(prefix.length()));
+        return count != null ? count.get() : 0;
+    }
+
+    private void countOriginConnection(String key, int delta) {
+        AtomicInteger count = mOriginConnections.get(key);
+        if (count == null) {
+            AtomicInteger created = new AtomicInteger();
+            count = mOriginConnections.putIfAbsent(key, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.addAndGet(delta);
+    }
+
+    private void serve(Socket socket) {
+        AudioCache cache = mCache;
+        CachedAudio audio = null;
+        HttpURLConnection connection = null;
+        // Key counted in mOriginConnections while a connection to its server is open
+        String counted = null;
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+
+            // Request line and headers; only the path and the range matter
+            String requestLine = readLine(in);
+            if (requestLine == null) {
+                return;
+            }
+            String[] parts = requestLine.split(" ");
+            long start = 0;
+            long end = -1;
+            boolean hasRange = false;
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Range")) {
+                    String value = line.substring(colon + 1).trim();
+                    if (value.startsWith("bytes=") && value.indexOf(',') < 0) {
+                        int dash = value.indexOf('-');
+                        try {
+                            start = Long.parseLong(value.substring(6, dash).trim());
+                            String last = value.substring(dash + 1).trim();
+                            end = last.isEmpty() ? -1 : Long.parseLong(last);
+                            hasRange = true;
+                        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                            Log.w(TAG, "Ignoring range " + value);
+                        }
+                    }
+                }
+            }
+            String key = parts.length > 1 && parts[1].startsWith("/") ? parts[1].substring(1) : "";
+            String source = mSources.get(key);
+            if (source == null) {
+                writeStatus(out, "404 Not Found", 0);
+                out.write("\r\n".getBytes("US-ASCII"));
+                out.flush();
+                return;
+            }
+
+            cache = mSaved.contains(key) ? mSaved : mCache;
+            audio = cache.open(key);
+            byte[] buffer = new byte[BUFFER_SIZE];
+
+            // Learn the length of the song from the first download of the range asked for
+            long connectionPosition = -1;
+            long connectionEnd = -1;
+            boolean partial = false;
+            InputStream origin = null;
+            if (audio.getLength() < 0) {
+                connection = openOrigin(source, start, -1);
+                countOriginConnection(key, 1);
+                counted = key;
+                long length = getOriginLength(connection);
+                if (length < 0) {
+                    // Can't be cached, e.g. a chunked response; let the player stream it
+                    Log.d(TAG, "Unknown length for " + source + ", redirecting");
+                    out.write(("HTTP/1.1 302 Found\r\n"
+                            + "Location: " + source + "\r\n"
+                            + "Content-Length: 0\r\n"
+                            + "Connection: close\r\n\r\n").getBytes("US-ASCII"));
+                    out.flush();
+                    return;
+                }
+                partial = connection.getResponseCode() == HttpURLConnection.HTTP_PARTIAL;
+                audio.setLength(length, connection.getContentType(), partial);
+                connectionPosition = partial ? start : 0;
+                connectionEnd = length;
+                origin = connection.getInputStream();
+            }
+
+            long length = audio.getLength();
+            if (end < 0 || end >= length) {
+                end = length - 1;
+            }
+            if (start > end) {
+                writeStatus(out, "416 Requested Range Not Satisfiable", 0);
+                out.write(("Content-Range: bytes */" + length + "\r\n\r\n").getBytes("US-ASCII"));
+                out.flush();
+                return;
+            }
+            writeStatus(out, hasRange ? "206 Partial Content" : "200 OK", end - start + 1);
+            String contentType = audio.getContentType();
+            StringBuilder headers = new StringBuilder()
+                    .append("Content-Type: ")
+                    .append(contentType != null ? contentType : DEFAULT_CONTENT_TYPE)
+                    .append("\r\n");
+            if (hasRange) {
+                headers.append("Content-Range: bytes ").append(start).append('-').append(end)
+                        .append('/').append(length).append("\r\n");
+            }
+            out.write(headers.append("\r\n").toString().getBytes("US-ASCII"));
+
+            long position = start;
+            long downloaded = 0;
+            while (position <= end) {
+                long cachedEnd = Math.min(audio.getCachedEnd(position), end + 1);
+                if (cachedEnd > position) {
+                    // Serve the cached bytes from disk
+                    int count = audio.read(position, buffer, 0,
+                            (int) Math.min(buffer.length, cachedEnd - position));
+                    out.write(buffer, 0, count);
+                    position += count;
+                    continue;
+                }
+
+                // Download the missing bytes, up to the next cached ones
+                long gapEnd = Math.min(audio.getNextCachedStart(position), end + 1);
+                // Bytes between the connection's position and this one were served from disk;
+                // skip them only if the server doesn't send ranges anyway
+                if (origin == null || connectionEnd < gapEnd || connectionPosition > position
+                        || (partial && connectionPosition < position)) {
+                    if (connection != null) {
+                        connection.disconnect();
+                    }
+                    connection = openOrigin(source, position, gapEnd - 1);
+                    if (counted == null) {
+                        countOriginConnection(key, 1);
+                        counted = key;
+                    }
+                    partial = connection.getResponseCode() == HttpURLConnection.HTTP_PARTIAL;
+                    connectionPosition = partial ? position : 0;
+                    connectionEnd = partial ? gapEnd : length;
+                    origin = connection.getInputStream();
+                }
+                while (position < gapEnd) {
+                    if (audio.getCachedEnd(position) > position) {
+                        // A burst download got there first; serve its bytes from disk
+                        break;
+                    }
+                    int count = origin.read(buffer, 0,
+                            (int) Math.min(buffer.length, gapEnd - connectionPosition));
+                    if (count < 0) {
+                        throw new IOException("Download of " + key + " ended early");
+                    }
+                    audio.write(connectionPosition, buffer, 0, count);
+                    // A server that ignores ranges sends bytes before the position too
+                    int skip = (int) Math.max(position - connectionPosition, 0);
+                    if (count > skip) {
+                        out.write(buffer, skip, count - skip);
+                        position = connectionPosition + count;
+                    }
+                    connectionPosition += count;
+                    downloaded += count;
+                }
+            }
+            out.flush();
+            Log.d(TAG, "Served " + key + " bytes " + start + "-" + end + ", downloaded "
+                    + downloaded);
+        } catch (SocketException e) {
+            // The media player closed the connection, e.g. to seek
+            Log.d(TAG, "Connection closed: " + e.getMessage());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to serve a request", e);
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            if (counted != null) {
+                countOriginConnection(counted, -1);
+            }
+            if (audio != null) {
+                audio.save();
+                cache.release(audio);
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close a connection", e);
+            }
+        }
+    }
+
+    /**
+     * Request bytes of a song from its server, following redirects.
+     * @param end   Last byte wanted, or -1 for the rest of the song.
+     */
+    static HttpURLConnection openOrigin(String source, long start, long end)
+            throws IOException {
+        URL url = new URL(source);
+        for (int redirects = 0; ; redirects++) {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setInstanceFollowRedirects(false);
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setRequestProperty("Accept-Encoding", "identity");
+            connection.setRequestProperty("Range",
+                    "bytes=" + start + "-" + (end >= 0 ? end : ""));
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_OK || code == HttpURLConnection.HTTP_PARTIAL) {
+                return connection;
+            }
+            String location = connection.getHeaderField("Location");
+            connection.disconnect();
+            boolean redirect = code == HttpURLConnection.HTTP_MOVED_PERM
+                    || code == HttpURLConnection.HTTP_MOVED_TEMP
+                    || code == HttpURLConnection.HTTP_SEE_OTHER
+                    || code == HTTP_TEMPORARY_REDIRECT
+                    || code == HTTP_PERMANENT_REDIRECT;
+            if (!redirect || location == null || redirects >= MAX_REDIRECTS) {
+                throw new IOException("HTTP " + code + " for " + source);
+            }
+            // The location may be relative to the URL redirected from
+            url = new URL(url, location);
+        }
+    }
+
+    /**
+     * @return  The length of the whole song from a response, or -1 if unknown.
+     */
+    static long getOriginLength(HttpURLConnection connection) throws IOException {
+        if (connection.getResponseCode() == HttpURLConnection.HTTP_PARTIAL) {
+            // Content-Range: bytes start-end/length
+            String range = connection.getHeaderField("Content-Range");
+            int slash = range == null ? -1 : range.lastIndexOf('/');
+            if (slash >= 0) {
+                try {
+                    return Long.parseLong(range.substring(slash + 1).trim());
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+            return -1;
+        }
+        String length = connection.getHeaderField("Content-Length");
+        try {
+            return length != null ? Long.parseLong(length.trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void writeStatus(OutputStream out, String status, long contentLength)
+            throws IOException {
+        String headers = "HTTP/1.1 " + status + "\r\n"
+                + "Accept-Ranges: bytes\r\n"
+                + "Content-Length: " + contentLength + "\r\n"
+                + "Connection: close\r\n";
+        out.write(headers.getBytes("US-ASCII"));
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0 && c != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return c < 0 && line.length() == 0 ? null : line.toString();
+    }
+
+}
@@ -0,0 +1,222 @@
+package co.stevets.music.network;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import co.stevets.music.models.MusicProvider;
+import retrofit.RetrofitError;
+import retrofit.client.Response;
+
+/**
+ * Downloads Hype Machine pages into the media catalog, several pages at a time.
+ * Each page is added to the {@link MusicProvider} as soon as it arrives, so playback can
+ * start after the first page while the rest are still downloading.
+ *
+ * Must be used from the main thread; listeners are also called on the main thread.
+ */
+public class CatalogLoader {
+
+    private static final String TAG = "CatalogLoader";
+
+    // Hype Machine pages that can be downloaded
+    public static final String POPULAR = "popular";
+    public static final String LATEST = "latest";
+
+    // How long idle download threads are kept around
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    // A page that fails is downloaded again, after a delay doubled at every attempt, so a
+    // network hiccup doesn't leave a hole in the catalog
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_DELAY_MS = 2000;
+
+    private final MusicProvider mProvider;
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final List<Listener> mListeners = new ArrayList<>();
+
+    // Next page number to download for every Hype Machine page
+    private final HashMap<String, Integer> mNextPage = new HashMap<>();
+
+    // Page numbers that failed every attempt, for every Hype Machine page; they are asked for
+    // again before new pages
+    private final HashMap<String, TreeSet<Integer>> mFailed = new HashMap<>();
+
+    // Hype Machine pages whose last page has been downloaded
+    private final HashSet<String> mFinished = new HashSet<>();
+
+    // Number of pages requested that haven't finished downloading
+    private int mPending;
+
+    /**
+     * @param provider      Music provider the songs are added to.
+     * @param maxInFlight   Maximum number of pages downloaded at the same time.
+     */
+    public CatalogLoader(MusicProvider provider, int maxInFlight) {
+        mProvider = provider;
+        mExecutor = new ThreadPoolExecutor(maxInFlight, maxInFlight,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Check if pages are being downloaded.
+     * @return True if there are pages that haven't finished downloading, false otherwise.
+     */
+    public boolean isLoading() {
+        return mPending > 0;
+    }
+
+    /**
+     * Check if a Hype Machine page may have more pages to download.
+     * @param page  Name of the Hype Machine page.
+     * @return      False once a page came back without songs, true otherwise.
+     */
+    public boolean hasMore(String page) {
+        return !mFinished.contains(page);
+    }
+
+    /**
+     * Download the next pages of a Hype Machine page. Pages are downloaded in order, at most
+     * maxInFlight at a time across all pages; pages that failed before come first.
+     * @param page  Name of the Hype Machine page, {@link #POPULAR} or {@link #LATEST}.
+     * @param count Number of pages to download.
+     */
+    public void loadMore(final String page, int count) {
+        TreeSet<Integer> failed = mFailed.get(page);
+        while (failed != null && !failed.isEmpty() && count > 0) {
+            mPending++;
+            downloadPage(page, failed.pollFirst(), 1);
+            count--;
+        }
+        if (count <= 0) {
+            return;
+        }
+        Integer next = mNextPage.get(page);
+        int first = next == null ? 1 : next;
+        mNextPage.put(page, first + count);
+
+        for (int i = first; i < first + count; i++) {
+            mPending++;
+            downloadPage(page, i, 1);
+        }
+    }
+
+    private void downloadPage(final String page, final int number, final int attempt) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final int songs = streamPage(page, number);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onPageFinished(page, number, songs, attempt);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Download a page and add its songs to the media catalog while the response is parsed.
+     * Runs on a download thread.
+     * @return  Number of songs added, or -1 if the page couldn't be downloaded.
+     */
+    private int streamPage(String page, int number) {
+        try {
+            ApiClient.MusicApiInterface api = ApiClient.getMusicApiClient();
+            Response response = LATEST.equals(page)
+                    ? api.getLatestStream(number) : api.getPopularStream(number);
+            int count = mProvider.addMediaCatalog(page,
+                    new InputStreamReader(response.getBody().in(), "UTF-8"));
+            Log.d(TAG, "streamPage. page=" + page + "/" + number + " songs=" + count);
+            return count;
+        } catch (RetrofitError | IOException e) {
+            Log.e(TAG, "streamPage. Unable to download " + page + "/" + number + ". Error: " + e);
+            return -1;
+        }
+    }
+
+    private void onPageFinished(final String page, final int number, int songs,
+            final int attempt) {
+        if (songs < 0 && attempt < MAX_ATTEMPTS && !mExecutor.isShutdown()) {
+            // Still pending; try the same page again later
+            long delay = RETRY_DELAY_MS << (attempt - 1);
+            Log.d(TAG, "onPageFinished. Retrying " + page + "/" + number + " in " + delay
+                    + "ms");
+            mHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    if (mExecutor.isShutdown()) {
+                        onPageFinished(page, number, -1, MAX_ATTEMPTS);
+                    } else {
+                        downloadPage(page, number, attempt + 1);
+                    }
+                }
+            }, delay);
+            return;
+        }
+        mPending--;
+        if (songs < 0) {
+            // Ask for it again with the next pages
+            TreeSet<Integer> failed = mFailed.get(page);
+            if (failed == null) {
+                failed = new TreeSet<>();
+                mFailed.put(page, failed);
+            }
+            failed.add(number);
+        } else if (songs == 0) {
+            // Past the last page
+            mFinished.add(page);
+        }
+        for (Listener listener : new ArrayList<>(mListeners)) {
+            listener.onPageLoaded(page, number, songs);
+        }
+        if (mPending == 0) {
+            for (Listener listener : new ArrayList<>(mListeners)) {
+                listener.onIdle();
+            }
+        }
+    }
+
+    /**
+     * Stop the download threads. Pages that are already downloading are finished.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    public interface Listener {
+        /**
+         * Called when a page has been downloaded and added to the catalog.
+         * @param songs Number of songs added, or -1 if every attempt to download it failed.
+         */
+        public void onPageLoaded(String page, int number, int songs);
+
+        /**
+         * Called when every requested page has finished downloading.
+         */
+        public void onIdle();
+    }
+
+}
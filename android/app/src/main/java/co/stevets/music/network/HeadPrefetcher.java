@@ -0,0 +1,120 @@
+package co.stevets.music.network;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import co.stevets.music.models.AudioCache;
+import co.stevets.music.models.CachedAudio;
+
+/**
+ * Downloads the first bytes of upcoming songs into the {@link AudioCache}, in the background
+ * and one song at a time. The {@link CachingProxy} serves a cached head from disk, so a song
+ * whose head is cached starts playing at once, and its server is only asked for the rest
+ * while the head plays.
+ */
+public class HeadPrefetcher {
+
+    private static final String TAG = "HeadPrefetcher";
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final AudioCache mCache;
+    private final int mHeadBytes;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    // Incremented for every new list of songs, so the songs of older lists are dropped
+    private volatile int mGeneration;
+
+    /**
+     * @param cache     Cache the heads are written to
+     * @param headBytes Number of bytes cached from the start of every song.
+     */
+    public HeadPrefetcher(AudioCache cache, int headBytes) {
+        mCache = cache;
+        mHeadBytes = headBytes;
+    }
+
+    /**
+     * Cache the heads of songs, in order, instead of the songs asked for before.
+     * @param mediaIds  Media IDs of the songs, next one first.
+     * @param sources   URLs of the songs on their servers
+     */
+    public void prefetch(final String[] mediaIds, final String[] sources) {
+        final int generation = ++mGeneration;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < mediaIds.length && generation == mGeneration; i++) {
+                    fetchHead(mediaIds[i], sources[i], generation);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop downloading.
+     */
+    public void stop() {
+        mGeneration++;
+        mExecutor.shutdownNow();
+    }
+
+    private void fetchHead(String key, String source, int generation) {
+        if (!AudioCache.isValidKey(key) || source == null || !source.startsWith("http")) {
+            return;
+        }
+        CachedAudio audio = mCache.open(key);
+        HttpURLConnection connection = null;
+        long downloaded = 0;
+        try {
+            long end = audio.getLength() >= 0
+                    ? Math.min(mHeadBytes, audio.getLength()) : mHeadBytes;
+            long position = audio.getCachedEnd(0);
+            if (position >= end) {
+                return;
+            }
+            connection = CachingProxy.openOrigin(source, position, end - 1);
+            boolean partial = connection.getResponseCode() == HttpURLConnection.HTTP_PARTIAL;
+            if (audio.getLength() < 0) {
+                long length = CachingProxy.getOriginLength(connection);
+                if (length < 0) {
+                    throw new IOException("Unknown length for " + source);
+                }
+                audio.setLength(length, connection.getContentType(), partial);
+                end = Math.min(end, length);
+            }
+
+            // A server that ignores ranges sends the song from its start
+            long connectionPosition = partial ? position : 0;
+            InputStream origin = connection.getInputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (connectionPosition < end && generation == mGeneration) {
+                int count = origin.read(buffer, 0,
+                        (int) Math.min(buffer.length, end - connectionPosition));
+                if (count < 0) {
+                    break;
+                }
+                audio.write(connectionPosition, buffer, 0, count);
+                connectionPosition += count;
+                downloaded += count;
+            }
+            Log.d(TAG, "Cached the head of " + key + ", downloaded " + downloaded);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to cache the head of " + key + ": " + e);
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            if (downloaded > 0) {
+                audio.save();
+            }
+            mCache.release(audio);
+        }
+    }
+
+}
@@ -3,11 +3,14 @@ package co.stevets.music.network;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.media.AudioManager;
+import android.media.MediaDescription;
 import android.media.MediaMetadata;
 import android.media.MediaPlayer;
 import android.media.session.MediaSession;
 import android.media.session.PlaybackState;
+import android.net.ConnectivityManager;
 import android.net.wifi.WifiManager;
 import android.os.Bundle;
 import android.os.Handler;
@@ -18,17 +21,26 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
 
 import co.stevets.music.R;
+import co.stevets.music.models.AudioCache;
+import co.stevets.music.models.LazyShuffle;
 import co.stevets.music.models.MusicProvider;
+import co.stevets.music.models.Recommender;
+import co.stevets.music.models.ShuffleWeight;
+import co.stevets.music.models.SkipPredictor;
 import co.stevets.music.utils.Common;
+import co.stevets.music.utils.PlayingQueue;
 import co.stevets.music.utils.QueueHelper;
 
 
 public class MusicService extends Service implements MediaPlayer.OnPreparedListener,
         MediaPlayer.OnCompletionListener, MediaPlayer.OnErrorListener,
-        AudioManager.OnAudioFocusChangeListener {
+        MediaPlayer.OnInfoListener, AudioManager.OnAudioFocusChangeListener {
 
     private static final String TAG = "MusicService";
 
@@ -39,12 +51,77 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
     // The volume we set the media player when we have audio focus.
     public static final float VOLUME_NORMAL = 1.0f;
 
+    // Number of shuffled songs kept on the queue after and before the current song
+    private static final int SHUFFLE_AHEAD = 20;
+    private static final int SHUFFLE_BEHIND = 50;
+
+    // Number of songs left to shuffle below which more pages are downloaded
+    private static final int SHUFFLE_LOW_WATER_MARK = 100;
+
+    // Songs skipped before this position, in milliseconds, count as disliked
+    private static final int EARLY_SKIP_MS = 30000;
+
+    // Number of songs published to the session before and after the current song, and how
+    // close the current song gets to the edge of the published songs before they move on
+    private static final int QUEUE_WINDOW_BEHIND = 50;
+    private static final int QUEUE_WINDOW_AHEAD = 200;
+    private static final int QUEUE_WINDOW_MARGIN = 20;
+
+    // Number of songs after and before the current song that get a prepared player, and how
+    // many players prepare at the same time
+    private static final int WARM_NEXT = 2;
+    private static final int WARM_PREVIOUS = 1;
+    private static final int MAX_PREPARING = 2;
+    // Connections to songs' servers the players kept warm may hold together
+    private static final int MAX_WARM_CONNECTIONS = 2;
+
+    // Number of songs after the warm ones whose first bytes are cached ahead, and how many
+    // bytes; 320 KB is about 20 seconds at 128 kbps
+    private static final int HEAD_PREFETCH_WINDOW = 6;
+    private static final int HEAD_PREFETCH_BYTES = 320 * 1024;
+
+    // Number of songs after the current one downloaded whole with it in burst mode
+    private static final int BURST_NEXT = 1;
+
+    // Time allowed to rerank the upcoming songs of a shuffled queue
+    private static final long RERANK_BUDGET_NANOS = 2000000;
+
+    // Hype Machine pages downloaded in turn while shuffling
+    private static final String[] SHUFFLE_PAGES = {CatalogLoader.POPULAR, CatalogLoader.LATEST};
+
     private MediaSession mSession;
     private MediaPlayer mMediaPlayer;
 
+    // Queue ID of the song of the media player, and whether the player is prepared
+    private long mPlayerQueueId;
+    // URL the media player plays its song from
+    private String mPlayerSource;
+    private boolean mPlayerPrepared;
+
+    // Players prepared with the songs around the current one. The player of the next song is
+    // chained to the current player once prepared, so the next song starts without a gap
+    private PlayerPool mPlayerPool;
+    private MediaPlayer mChainedPlayer;
+
+    // When the last song completed and when the song after it started, 0 if not yet; the gap
+    // between them is measured for every song played to the end
+    private long mCompletedAt;
+    private long mStartedAsNextAt;
+    private int mTransitionCount;
+    private long mTransitionGapTotal;
+
     // "Now playing" queue:
-    private List<MediaSession.QueueItem> mPlayingQueue;
+    private PlayingQueue mPlayingQueue;
     private int mCurrentIndexOnQueue;
+    // Queue IDs of the songs queued by the listener, which were not drawn from the shuffle
+    private final HashSet<Long> mQueuedByUser = new HashSet<>();
+    // Part of the queue published to the session, from start included to end excluded
+    private int mPublishedStart;
+    private int mPublishedEnd;
+
+    // Draws the songs of a shuffled queue as it plays, null for other queues
+    private LazyShuffle mShuffle;
+    private int mNextShufflePage;
 
     // Current local media player state
     private int mState = PlaybackState.STATE_NONE;
@@ -63,10 +140,32 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
 
     // Music catalog manager
     private MusicProvider mMusicProvider;
+    private CatalogLoader mCatalogLoader;
+    private Recommender mRecommender;
+    private SkipPredictor mSkipPredictor;
+
+    // Local server the media players stream through, which caches the songs; null if it
+    // couldn't start, and songs are then streamed from their servers
+    private CachingProxy mProxy;
+    private AudioCache mAudioCache;
+    // Caches the first bytes of upcoming songs for the proxy; null without the proxy
+    private HeadPrefetcher mHeadPrefetcher;
+    // Downloads the current song whole so the Wi-Fi lock can be let go; null without the proxy
+    private BurstDownloader mBurstDownloader;
+    // Saves songs for offline listening, slowed down while songs stream
+    private OfflineDownloader mOfflineDownloader;
+
+    // Radio use this session: bytes and time of burst downloads, and time the Wi-Fi lock was
+    // held; when the Wi-Fi lock was acquired, 0 if it isn't held
+    private long mBurstBytes;
+    private long mBurstMs;
+    private long mWifiLockMs;
+    private long mWifiLockSince;
 
     // Type of audio focus we have:
     private AudioFocus mAudioFocus = AudioFocus.NoFocusNoDuck;
     private AudioManager mAudioManager;
+    private ConnectivityManager mConnectivityManager;
 
     // Indicates if we should start playing immediately after we gain focus.
     private boolean mPlayOnFocusGain;
@@ -98,7 +197,18 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
 
         Common app = (Common) getApplicationContext();
 
-        mPlayingQueue = new ArrayList<>();
+        mPlayingQueue = new PlayingQueue();
+        mPlayerPool = new PlayerPool(new PlayerPool.Factory() {
+            @Override
+            public MediaPlayer newMediaPlayer() {
+                return MusicService.this.newMediaPlayer();
+            }
+        }, new PlayerPool.Budget() {
+            @Override
+            public int getConnections(String source) {
+                return mProxy != null ? mProxy.getOriginConnections(source) : -1;
+            }
+        }, WARM_NEXT + WARM_PREVIOUS, MAX_PREPARING, MAX_WARM_CONNECTIONS);
 
         // Create the Wifi lock (this does not acquire the lock, this just creates it)
         mWifiLock = ((WifiManager) getSystemService(Context.WIFI_SERVICE))
@@ -106,8 +216,37 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
 
         // Get the music catalog metadata provider
         mMusicProvider = app.getProvider();
+        mCatalogLoader = app.getCatalogLoader();
+        mRecommender = app.getRecommender();
+        mSkipPredictor = app.getSkipPredictor();
+
+        mAudioCache = app.getAudioCache();
+        mOfflineDownloader = app.getOfflineDownloader();
+        mProxy = new CachingProxy(mAudioCache, app.getSavedAudio());
+        try {
+            mProxy.start();
+            mHeadPrefetcher = new HeadPrefetcher(mAudioCache, HEAD_PREFETCH_BYTES);
+            mBurstDownloader = new BurstDownloader(mAudioCache, new BurstDownloader.Listener() {
+                @Override
+                public void onBurstFinished(final String[] mediaIds, final boolean complete,
+                        final long bytes, final long activeMs) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            MusicService.this.onBurstFinished(mediaIds, complete, bytes,
+                                    activeMs);
+                        }
+                    });
+                }
+            });
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to start the caching proxy, streaming songs directly", e);
+            mProxy = null;
+        }
 
         mAudioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+        mConnectivityManager =
+                (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
 
         // Start a new MediaSession
         mSession = app.getSession();
@@ -147,6 +286,16 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
         // Clean up the handler
         mHandler.removeCallbacks(mPositionUpdater);
 
+        if (mProxy != null) {
+            mProxy.stop();
+        }
+        if (mHeadPrefetcher != null) {
+            mHeadPrefetcher.stop();
+        }
+        if (mBurstDownloader != null) {
+            mBurstDownloader.stop();
+        }
+
         // In particular, always release the MediaSession to clean up resources
         // and notify associated MediaController(s).
         mSession.release();
@@ -191,15 +340,39 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
             Log.d(TAG, "play");
 
             if (mPlayingQueue == null || mPlayingQueue.isEmpty()) {
-                mPlayingQueue = QueueHelper.getRandomQueue(mMusicProvider);
-                mSession.setQueue(mPlayingQueue);
-                mSession.setQueueTitle(getString(R.string.random_queue_title));
-                // start playing from the beginning of the queue
+                // start playing from the beginning of a shuffled queue
+                startShuffleQueue();
+            }
+
+            if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
+                handlePlayRequest();
+            }
+        }
+
+        @Override
+        public void onPlayFromSearch(String query, Bundle extras) {
+            Log.d(TAG, "playFromSearch  query=" + query);
+
+            if (query == null || query.isEmpty()) {
+                // A search without words means "play some music"
+                startShuffleQueue();
+            } else {
+                // Keep where the shuffle was, and the songs it drew that weren't played yet
+                saveShuffle();
+                mShuffle = null;
+                mQueuedByUser.clear();
+                setPlayingQueue(QueueHelper.getPlayingQueueFromSearch(query, mMusicProvider));
+                // start playing from the best match
                 mCurrentIndexOnQueue = 0;
+                publishQueue(true);
+                mSession.setQueueTitle(getString(R.string.search_queue_title, query));
             }
 
             if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
+                mState = PlaybackState.STATE_STOPPED;
                 handlePlayRequest();
+            } else {
+                handleStopRequest(getString(R.string.no_search_results));
             }
         }
 
@@ -208,8 +381,14 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
             Log.d(TAG, "OnSkipToQueueItem:" + queueId);
             if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
 
-                // set the current index on queue from the music Id:
-                mCurrentIndexOnQueue = QueueHelper.getMusicIndexOnQueue(mPlayingQueue, queueId);
+                // set the current index on queue from the queue Id:
+                int index = mPlayingQueue.indexOfQueueId(queueId);
+                if (index == PlayingQueue.NOT_FOUND) {
+                    Log.e(TAG, "onSkipToQueueItem: no item with queueId=" + queueId);
+                    return;
+                }
+                mCurrentIndexOnQueue = index;
+                extendShuffleQueue();
 
                 // play the music
                 handlePlayRequest();
@@ -231,11 +410,21 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
         @Override
         public void onSkipToNext() {
             Log.d(TAG, "skipToNext");
+            if (mMediaPlayer != null && mPlayingQueue.isPlayable(mCurrentIndexOnQueue)
+                    && (mState == PlaybackState.STATE_PLAYING
+                    || mState == PlaybackState.STATE_PAUSED)
+                    && mMediaPlayer.getCurrentPosition() < EARLY_SKIP_MS) {
+                mSkipPredictor.onSkipped(
+                        mPlayingQueue.get(mCurrentIndexOnQueue).getDescription().getMediaId());
+            }
             mCurrentIndexOnQueue++;
-            if (mPlayingQueue != null && mCurrentIndexOnQueue >= mPlayingQueue.size()) {
+            if (mShuffle != null) {
+                // Shuffled queues never end
+                extendShuffleQueue();
+            } else if (mPlayingQueue != null && mCurrentIndexOnQueue >= mPlayingQueue.size()) {
                 mCurrentIndexOnQueue = 0;
             }
-            if (QueueHelper.isIndexPlayable(mCurrentIndexOnQueue, mPlayingQueue)) {
+            if (mPlayingQueue.isPlayable(mCurrentIndexOnQueue)) {
                 mState = PlaybackState.STATE_PLAYING;
                 handlePlayRequest();
             } else {
@@ -255,7 +444,7 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
                 // Skipping to previous when in first song restarts the first song.
                 mCurrentIndexOnQueue = 0;
             }
-            if (QueueHelper.isIndexPlayable(mCurrentIndexOnQueue, mPlayingQueue)) {
+            if (mPlayingQueue.isPlayable(mCurrentIndexOnQueue)) {
                 mState = PlaybackState.STATE_PLAYING;
                 handlePlayRequest();
             } else {
@@ -278,7 +467,47 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
                 MediaMetadata track = getCurrentPlayingMusic();
                 if (track != null) {
                     String mediaId = track.getString(Common.METADATA_MEDIA_ID);
-                    mMusicProvider.setFavorite(mediaId, !mMusicProvider.isFavorite(mediaId));
+                    boolean favorite = !mMusicProvider.isFavorite(mediaId);
+                    ((Common) getApplicationContext()).setFavorite(mediaId, favorite);
+                    if (favorite) {
+                        mRecommender.onFavorite(mediaId);
+                    }
+                }
+                updatePlaybackState(null);
+            } else if (Common.ACTION_ENQUEUE.equals(action)
+                    || Common.ACTION_PLAY_NEXT.equals(action)) {
+                String mediaId = extras != null ? extras.getString(Common.EXTRA_MEDIA_ID) : null;
+                if (mediaId == null) {
+                    Log.e(TAG, "onCustomAction: " + action + " without a media ID");
+                    return;
+                }
+                enqueue(mediaId, Common.ACTION_PLAY_NEXT.equals(action));
+            } else if (Common.ACTION_REMOVE.equals(action)) {
+                if (extras == null || !extras.containsKey(Common.EXTRA_QUEUE_ID)) {
+                    Log.e(TAG, "onCustomAction: " + action + " without a queue ID");
+                    return;
+                }
+                removeFromQueue(extras.getLong(Common.EXTRA_QUEUE_ID, -1));
+            } else if (Common.ACTION_MOVE.equals(action)) {
+                if (extras == null || !extras.containsKey(Common.EXTRA_QUEUE_ID)
+                        || !extras.containsKey(Common.EXTRA_TARGET_QUEUE_ID)) {
+                    Log.e(TAG, "onCustomAction: " + action + " without queue IDs");
+                    return;
+                }
+                moveInQueue(extras.getLong(Common.EXTRA_QUEUE_ID, -1),
+                        extras.getLong(Common.EXTRA_TARGET_QUEUE_ID, -1));
+            } else if (Common.ACTION_SAVE.equals(action)) {
+                // Without a media ID, the current song is saved
+                saveForOffline(extras != null ? extras.getString(Common.EXTRA_MEDIA_ID) : null);
+            } else if (Common.ACTION_BURST.equals(action)) {
+                Common app = (Common) getApplicationContext();
+                boolean burst = !app.isBurstDownload();
+                Log.i(TAG, "onCustomAction: burst download=" + burst);
+                app.setBurstDownload(burst);
+                if (burst) {
+                    burstDownload();
+                } else if (mBurstDownloader != null) {
+                    mBurstDownloader.cancel();
                 }
                 updatePlaybackState(null);
             } else {
@@ -298,14 +527,32 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
     @Override
     public void onCompletion(MediaPlayer player) {
         Log.d(TAG, "onCompletion from MediaPlayer");
+        if (player != mMediaPlayer) {
+            return;
+        }
+        mCompletedAt = SystemClock.elapsedRealtime();
+        if (mStartedAsNextAt != 0) {
+            // The next player reported its start first
+            onTransition(mStartedAsNextAt);
+        }
         // The media player finished playing the current song, so we go ahead
         // and start the next.
         if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
-            // Restart the playing queue when it gets to the end:
+            if (mPlayingQueue.isPlayable(mCurrentIndexOnQueue)) {
+                String mediaId =
+                        mPlayingQueue.get(mCurrentIndexOnQueue).getDescription().getMediaId();
+                mRecommender.onCompleted(mediaId);
+                mSkipPredictor.onCompleted(mediaId);
+            }
             mCurrentIndexOnQueue++;
-            if (mCurrentIndexOnQueue >= mPlayingQueue.size()) {
+            if (mShuffle != null) {
+                // Draw the next songs of a shuffled queue
+                extendShuffleQueue();
+            } else if (mCurrentIndexOnQueue >= mPlayingQueue.size()) {
+                // Restart the playing queue when it gets to the end:
                 mCurrentIndexOnQueue = 0;
             }
+            // The next song's player has usually started already
             handlePlayRequest();
         } else {
             // If there is nothing to play, we stop and release the resources:
@@ -320,9 +567,19 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
     @Override
     public void onPrepared(MediaPlayer player) {
         Log.d(TAG, "onPrepared from MediaPlayer");
+        if (mPlayerPool.onPrepared(player)) {
+            // Start the next song as soon as the current one ends
+            chainNextPlayer();
+            return;
+        }
+        if (player != mMediaPlayer) {
+            return;
+        }
+        mPlayerPrepared = true;
         // The media player is done preparing. That means we can start playing if we
         // have audio focus.
         configMediaPlayerState();
+        warmPlayers();
     }
 
     /**
@@ -335,11 +592,39 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
     @Override
     public boolean onError(MediaPlayer mp, int what, int extra) {
         Log.e(TAG, "Media player error: what=" + what + ", extra=" + extra);
+        if (mp == mChainedPlayer) {
+            mMediaPlayer.setNextMediaPlayer(null);
+            mChainedPlayer = null;
+        }
+        if (mPlayerPool.onError(mp)) {
+            // The song will be prepared again when it plays
+            return true;
+        }
         handleStopRequest("MediaPlayer error " + what + " (" + extra + ")");
         return true; // true indicates we handled the error
     }
 
 
+    /**
+     * Called when the next player starts playing, as the current song ends.
+     *
+     * @see android.media.MediaPlayer.OnInfoListener
+     */
+    @Override
+    public boolean onInfo(MediaPlayer mp, int what, int extra) {
+        if (what == MediaPlayer.MEDIA_INFO_STARTED_AS_NEXT) {
+            long now = SystemClock.elapsedRealtime();
+            if (mCompletedAt != 0) {
+                onTransition(now);
+            } else {
+                mStartedAsNextAt = now;
+            }
+            return true;
+        }
+        return false;
+    }
+
+
     // *********  OnAudioFocusChangeListener listener:
 
 
@@ -378,12 +663,523 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
 
     // *********  private methods:
 
+    /**
+     * Start a shuffled queue. Songs are drawn from the catalog as the queue plays, so the
+     * queue never ends and never holds more than a few dozen songs. Until songs have been
+     * downloaded in this session, the songs of the previous session are shuffled instead.
+     */
+    private void startShuffleQueue() {
+        // Continue the shuffle playing, if any
+        saveShuffle();
+        mCurrentIndexOnQueue = 0;
+        mQueuedByUser.clear();
+        if (mMusicProvider.hasNetworkCatalog()) {
+            mShuffle = restoreShuffle();
+            setPlayingQueue(new PlayingQueue());
+            queueUnplayed();
+            extendShuffleQueue();
+        } else {
+            mShuffle = null;
+            setPlayingQueue(QueueHelper.getRandomQueue(mMusicProvider));
+            publishQueue(true);
+        }
+        mSession.setQueueTitle(getString(R.string.random_queue_title));
+    }
+
+    /**
+     * Replace the playing queue. Queue IDs start over in the new queue, so the players
+     * prepared for the old queue are released instead of being taken for other songs.
+     */
+    private void setPlayingQueue(PlayingQueue queue) {
+        if (mChainedPlayer != null) {
+            mMediaPlayer.setNextMediaPlayer(null);
+            mChainedPlayer = null;
+        }
+        mPlayerPool.releaseAll();
+        // Not a song of the new queue, so playing the next song releases the current player
+        mPlayerQueueId = -1;
+        mPlayerPrepared = false;
+        mPlayingQueue = queue;
+    }
+
+    /**
+     * Resume the shuffle of the previous queue where it stopped, or start a new one. Weighted
+     * draws only remember in memory which songs were drawn, so they always start anew.
+     */
+    private LazyShuffle restoreShuffle() {
+        SharedPreferences prefs = ((Common) getApplicationContext()).getSharedPreferences();
+        if (!prefs.contains(Common.PREF_SHUFFLE_SEED)
+                || mMusicProvider.getShuffleWeight() != ShuffleWeight.UNIFORM) {
+            return mMusicProvider.newShuffle(new Random().nextLong());
+        }
+        return mMusicProvider.resumeShuffle(
+                prefs.getLong(Common.PREF_SHUFFLE_SEED, 0),
+                prefs.getInt(Common.PREF_SHUFFLE_EPOCH_START, 0),
+                prefs.getInt(Common.PREF_SHUFFLE_EPOCH_SIZE, 0),
+                prefs.getInt(Common.PREF_SHUFFLE_POSITION, 0),
+                prefs.getLong(Common.PREF_SHUFFLE_LAST_DRAWN, 0));
+    }
+
+    /**
+     * Save the shuffle so the next shuffled queue continues it. The songs drawn but not played
+     * yet, the current one included, are saved by media ID and queued first by the next
+     * shuffled queue, whatever epoch the shuffle has moved on to.
+     */
+    private void saveShuffle() {
+        if (mShuffle == null) {
+            return;
+        }
+        StringBuilder unplayed = new StringBuilder();
+        for (int i = Math.max(mCurrentIndexOnQueue, 0); i < mPlayingQueue.size(); i++) {
+            MediaSession.QueueItem item = mPlayingQueue.get(i);
+            if (!mQueuedByUser.contains(item.getQueueId())) {
+                unplayed.append(item.getDescription().getMediaId()).append(' ');
+            }
+        }
+        ((Common) getApplicationContext()).getSharedPreferences().edit()
+                .putLong(Common.PREF_SHUFFLE_SEED, mShuffle.getSeed())
+                .putInt(Common.PREF_SHUFFLE_EPOCH_START, mShuffle.getEpochStart())
+                .putInt(Common.PREF_SHUFFLE_EPOCH_SIZE, mShuffle.getEpochSize())
+                .putInt(Common.PREF_SHUFFLE_POSITION, mShuffle.getPosition())
+                .putLong(Common.PREF_SHUFFLE_LAST_DRAWN, mShuffle.getLastDrawn())
+                .putString(Common.PREF_SHUFFLE_UNPLAYED, unplayed.toString().trim())
+                .apply();
+    }
+
+    /**
+     * Queue the songs the saved shuffle had drawn but not played, that are in the catalog.
+     */
+    private void queueUnplayed() {
+        String unplayed = ((Common) getApplicationContext()).getSharedPreferences()
+                .getString(Common.PREF_SHUFFLE_UNPLAYED, "");
+        for (String mediaId : unplayed.split(" ")) {
+            MediaMetadata track = mediaId.isEmpty() ? null : mMusicProvider.getMusic(mediaId);
+            if (track != null) {
+                mPlayingQueue.add(mPlayingQueue.size(), track.getDescription());
+            }
+        }
+    }
+
+    /**
+     * Draw songs onto a shuffled queue until there are enough after the current song, and
+     * drop the songs long played. Downloads another page when the catalog has few songs left
+     * to draw.
+     */
+    private void extendShuffleQueue() {
+        if (mShuffle == null) {
+            return;
+        }
+        boolean changed = false;
+        while (mCurrentIndexOnQueue > SHUFFLE_BEHIND) {
+            mPlayingQueue.remove(0);
+            mCurrentIndexOnQueue--;
+            changed = true;
+        }
+        int drawn = mPlayingQueue.size();
+        while (mPlayingQueue.size() - mCurrentIndexOnQueue <= SHUFFLE_AHEAD) {
+            MediaDescription track = mShuffle.next();
+            if (track == null) {
+                break;
+            }
+            mPlayingQueue.add(mPlayingQueue.size(), track);
+        }
+        boolean added = mPlayingQueue.size() > drawn;
+        if (added) {
+            // Play the new songs most like the ones liked recently first, and the songs likely
+            // to be skipped last. The songs drawn before keep their place, and so does the
+            // next song, the listener may already have seen it coming
+            QueueHelper.rerankQueue(mPlayingQueue, Math.max(drawn, mCurrentIndexOnQueue + 2),
+                    mRecommender, mSkipPredictor, RERANK_BUDGET_NANOS);
+        }
+        if (changed || added) {
+            publishQueue(true);
+        }
+
+        if (mShuffle.getRemaining() < SHUFFLE_LOW_WATER_MARK && !mCatalogLoader.isLoading()) {
+            // Take turns between the pages that still have songs
+            for (int i = 0; i < SHUFFLE_PAGES.length; i++) {
+                String page = SHUFFLE_PAGES[mNextShufflePage];
+                mNextShufflePage = (mNextShufflePage + 1) % SHUFFLE_PAGES.length;
+                if (mCatalogLoader.hasMore(page)) {
+                    Log.d(TAG, "extendShuffleQueue: loading more songs from " + page);
+                    mCatalogLoader.loadMore(page, 1);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Publish the songs of the queue around the current song to the session. Publishing the
+     * whole queue could go over the binder transaction limit, and makes controllers read every
+     * song again on each update.
+     * @param changed   True if the queue changed, false if only the current song did; the
+     *                  songs are then published again only when the current song nears the
+     *                  edge of the songs published.
+     */
+    private void publishQueue(boolean changed) {
+        int size = mPlayingQueue.size();
+        if (!changed) {
+            boolean nearStart = mPublishedStart > 0
+                    && mCurrentIndexOnQueue < mPublishedStart + QUEUE_WINDOW_MARGIN;
+            boolean nearEnd = mPublishedEnd < size
+                    && mCurrentIndexOnQueue >= mPublishedEnd - QUEUE_WINDOW_MARGIN;
+            if (!nearStart && !nearEnd) {
+                return;
+            }
+        }
+        mPublishedStart = Math.max(mCurrentIndexOnQueue - QUEUE_WINDOW_BEHIND, 0);
+        mPublishedEnd = Math.min(mCurrentIndexOnQueue + QUEUE_WINDOW_AHEAD + 1, size);
+        if (mPublishedStart > mPublishedEnd) {
+            mPublishedStart = mPublishedEnd;
+        }
+        Log.d(TAG, "publishQueue: songs " + mPublishedStart + " to " + mPublishedEnd
+                + " of " + size);
+        mSession.setQueue(new ArrayList<>(mPlayingQueue.subList(mPublishedStart, mPublishedEnd)));
+    }
+
+    /**
+     * Add a song to the queue, after the current song if it should play next, or else after
+     * the songs already queued by the listener.
+     * @param mediaId   Song ID
+     * @param playNext  True to play the song next
+     */
+    private void enqueue(String mediaId, boolean playNext) {
+        MediaMetadata track = mediaId == null ? null : mMusicProvider.getMusic(mediaId);
+        if (track == null) {
+            Log.e(TAG, "enqueue: no song with mediaId=" + mediaId);
+            return;
+        }
+        if (mPlayingQueue.isEmpty()) {
+            mCurrentIndexOnQueue = 0;
+        }
+        int index = mPlayingQueue.isEmpty() ? 0 : mCurrentIndexOnQueue + 1;
+        if (!playNext) {
+            index += getQueuedByUserAhead();
+        }
+        MediaSession.QueueItem item = mPlayingQueue.add(index, track.getDescription());
+        mQueuedByUser.add(item.getQueueId());
+        Log.d(TAG, "enqueue: mediaId=" + mediaId + " index=" + index);
+        publishQueue(true);
+        warmPlayers();
+        updatePlaybackState(null);
+    }
+
+    /**
+     * Remove a song from the queue. Removing the current song plays the next one.
+     * @param queueId   Queue ID of the song
+     */
+    private void removeFromQueue(long queueId) {
+        int index = mPlayingQueue.indexOfQueueId(queueId);
+        if (index == PlayingQueue.NOT_FOUND) {
+            Log.e(TAG, "removeFromQueue: no item with queueId=" + queueId);
+            return;
+        }
+        mPlayingQueue.remove(index);
+        mQueuedByUser.remove(queueId);
+        boolean current = index == mCurrentIndexOnQueue;
+        if (index < mCurrentIndexOnQueue) {
+            mCurrentIndexOnQueue--;
+        }
+        if (mShuffle != null) {
+            extendShuffleQueue();
+        } else if (mCurrentIndexOnQueue >= mPlayingQueue.size()) {
+            mCurrentIndexOnQueue = 0;
+        }
+        publishQueue(true);
+
+        if (mPlayingQueue.isEmpty()) {
+            handleStopRequest(null);
+        } else if (current && (mState == PlaybackState.STATE_PLAYING
+                || mState == PlaybackState.STATE_PAUSED)) {
+            // Start the song that took its place
+            mState = PlaybackState.STATE_STOPPED;
+            handlePlayRequest();
+        } else {
+            warmPlayers();
+            updatePlaybackState(null);
+        }
+    }
+
+    /**
+     * Move a song to the index of another song of the queue, which moves up or down by one.
+     * The current song keeps playing.
+     * @param queueId       Queue ID of the song
+     * @param targetQueueId Queue ID of the song whose index the song takes.
+     */
+    private void moveInQueue(long queueId, long targetQueueId) {
+        int from = mPlayingQueue.indexOfQueueId(queueId);
+        int to = mPlayingQueue.indexOfQueueId(targetQueueId);
+        if (from == PlayingQueue.NOT_FOUND || to == PlayingQueue.NOT_FOUND) {
+            Log.e(TAG, "moveInQueue: cannot move queueId=" + queueId + " to queueId="
+                    + targetQueueId);
+            return;
+        }
+        mPlayingQueue.move(from, to);
+        if (from == mCurrentIndexOnQueue) {
+            mCurrentIndexOnQueue = to;
+        } else if (from < mCurrentIndexOnQueue && to >= mCurrentIndexOnQueue) {
+            mCurrentIndexOnQueue--;
+        } else if (from > mCurrentIndexOnQueue && to <= mCurrentIndexOnQueue) {
+            mCurrentIndexOnQueue++;
+        }
+        // A moved song keeps whether it was queued by the listener or drawn from the shuffle,
+        // so the shuffle is saved at the right position
+        publishQueue(true);
+        warmPlayers();
+        updatePlaybackState(null);
+    }
+
+    /**
+     * Count the songs queued by the listener after the current song, and forget the others.
+     */
+    private int getQueuedByUserAhead() {
+        int ahead = 0;
+        Iterator<Long> iterator = mQueuedByUser.iterator();
+        while (iterator.hasNext()) {
+            int index = mPlayingQueue.indexOfQueueId(iterator.next());
+            if (index > mCurrentIndexOnQueue) {
+                ahead++;
+            } else {
+                iterator.remove();
+            }
+        }
+        return ahead;
+    }
+
+    /**
+     * Prepare players for the songs around the current one, and release the players of songs
+     * further away. Called once the current song is prepared, and when the queue changes.
+     */
+    private void warmPlayers() {
+        if (mMediaPlayer == null || !mPlayerPrepared) {
+            return;
+        }
+        int size = mPlayingQueue.size();
+        List<Long> queueIds = new ArrayList<>(WARM_NEXT + WARM_PREVIOUS);
+        List<String> sources = new ArrayList<>(WARM_NEXT + WARM_PREVIOUS);
+        // The next song first, then the previous one, then the songs after the next one
+        for (int i = 0; i < Math.max(WARM_NEXT, WARM_PREVIOUS); i++) {
+            if (i < WARM_NEXT) {
+                int index = mCurrentIndexOnQueue + 1 + i;
+                addWarmSong(mShuffle == null && size > 0 ? index % size : index,
+                        queueIds, sources);
+            }
+            if (i < WARM_PREVIOUS) {
+                addWarmSong(mCurrentIndexOnQueue - 1 - i, queueIds, sources);
+            }
+        }
+
+        long[] ids = new long[queueIds.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = queueIds.get(i);
+        }
+        // Unchain the next player before the pool can release it
+        if (mChainedPlayer != null && mChainedPlayer != getNextPlayer()) {
+            mMediaPlayer.setNextMediaPlayer(null);
+            mChainedPlayer = null;
+        }
+        mPlayerPool.warm(ids, sources.toArray(new String[sources.size()]));
+        chainNextPlayer();
+        prefetchHeads();
+    }
+
+    /**
+     * Download the current song whole, and the ones after it, if burst mode is on and the
+     * network is unmetered. The Wi-Fi lock is released once they are cached, and the radio can
+     * sleep while they play from disk. Songs saved for offline listening play from disk already.
+     */
+    private void burstDownload() {
+        MediaMetadata current = getCurrentPlayingMusic();
+        if (current != null
+                && mOfflineDownloader.isSaved(current.getString(Common.METADATA_MEDIA_ID))) {
+            releaseWifiLock();
+        }
+        if (mBurstDownloader == null || !((Common) getApplicationContext()).isBurstDownload()
+                || mConnectivityManager.isActiveNetworkMetered()) {
+            return;
+        }
+        int size = mPlayingQueue.size();
+        List<String> mediaIds = new ArrayList<>(1 + BURST_NEXT);
+        List<String> sources = new ArrayList<>(1 + BURST_NEXT);
+        for (int i = 0; i <= BURST_NEXT; i++) {
+            int index = mCurrentIndexOnQueue + i;
+            if (mShuffle == null && size > 0) {
+                index %= size;
+            }
+            if (!mPlayingQueue.isPlayable(index) || (i > 0 && index == mCurrentIndexOnQueue)) {
+                continue;
+            }
+            String mediaId = mPlayingQueue.get(index).getDescription().getMediaId();
+            MediaMetadata track = mMusicProvider.getMusic(mediaId);
+            if (track != null && !mediaIds.contains(mediaId)
+                    && !mOfflineDownloader.isSaved(mediaId)) {
+                mediaIds.add(mediaId);
+                sources.add(track.getString(Common.METADATA_SOURCE));
+            }
+        }
+        mBurstDownloader.download(mediaIds.toArray(new String[mediaIds.size()]),
+                sources.toArray(new String[sources.size()]));
+    }
+
+    private void onBurstFinished(String[] mediaIds, boolean complete, long bytes,
+            long activeMs) {
+        mBurstBytes += bytes;
+        mBurstMs += activeMs;
+        Log.d(TAG, "onBurstFinished: complete=" + complete + " bytes=" + bytes + " activeMs="
+                + activeMs);
+        MediaMetadata track = getCurrentPlayingMusic();
+        if (complete && track != null && mediaIds.length > 0
+                && mediaIds[0].equals(track.getString(Common.METADATA_MEDIA_ID))) {
+            // The rest plays from disk
+            releaseWifiLock();
+        }
+    }
+
+    /**
+     * Save a song for offline listening.
+     * @param mediaId   Media ID of the song, or null for the current song.
+     */
+    private void saveForOffline(String mediaId) {
+        MediaMetadata track = mediaId != null ? mMusicProvider.getMusic(mediaId)
+                : getCurrentPlayingMusic();
+        if (track == null) {
+            Log.w(TAG, "saveForOffline: unknown song " + mediaId);
+            return;
+        }
+        Log.i(TAG, "saveForOffline: " + track.getString(Common.METADATA_MEDIA_ID));
+        mOfflineDownloader.save(track.getString(Common.METADATA_MEDIA_ID),
+                track.getString(Common.METADATA_SOURCE));
+    }
+
+    /**
+     * Cache the first bytes of the songs after the warm ones, so skipping past the warm songs
+     * starts at once too.
+     */
+    private void prefetchHeads() {
+        if (mHeadPrefetcher == null) {
+            return;
+        }
+        int size = mPlayingQueue.size();
+        List<String> mediaIds = new ArrayList<>(HEAD_PREFETCH_WINDOW);
+        List<String> sources = new ArrayList<>(HEAD_PREFETCH_WINDOW);
+        for (int i = WARM_NEXT; i < WARM_NEXT + HEAD_PREFETCH_WINDOW; i++) {
+            int index = mCurrentIndexOnQueue + 1 + i;
+            if (mShuffle == null && size > 0) {
+                index %= size;
+            }
+            if (!mPlayingQueue.isPlayable(index) || index == mCurrentIndexOnQueue) {
+                continue;
+            }
+            String mediaId = mPlayingQueue.get(index).getDescription().getMediaId();
+            MediaMetadata track = mMusicProvider.getMusic(mediaId);
+            if (track != null && !mediaIds.contains(mediaId)
+                    && !mOfflineDownloader.isSaved(mediaId)) {
+                mediaIds.add(mediaId);
+                sources.add(track.getString(Common.METADATA_SOURCE));
+            }
+        }
+        mHeadPrefetcher.prefetch(mediaIds.toArray(new String[mediaIds.size()]),
+                sources.toArray(new String[sources.size()]));
+    }
+
+    private void addWarmSong(int index, List<Long> queueIds, List<String> sources) {
+        if (!mPlayingQueue.isPlayable(index) || index == mCurrentIndexOnQueue) {
+            return;
+        }
+        MediaSession.QueueItem item = mPlayingQueue.get(index);
+        if (queueIds.contains(item.getQueueId())) {
+            return;
+        }
+        MediaMetadata track = mMusicProvider.getMusic(item.getDescription().getMediaId());
+        if (track != null) {
+            queueIds.add(item.getQueueId());
+            sources.add(getSource(track));
+        }
+    }
+
+    /**
+     * @return  The prepared player of the song after the current one, or null.
+     */
+    private MediaPlayer getNextPlayer() {
+        int index = mCurrentIndexOnQueue + 1;
+        if (mShuffle == null && index >= mPlayingQueue.size()) {
+            index = 0;
+        }
+        if (!mPlayingQueue.isPlayable(index) || index == mCurrentIndexOnQueue) {
+            return null;
+        }
+        return mPlayerPool.getPrepared(mPlayingQueue.get(index).getQueueId());
+    }
+
+    /**
+     * Chain the player of the next song to the current player, so it starts as the current
+     * song ends.
+     */
+    private void chainNextPlayer() {
+        if (mMediaPlayer == null || !mPlayerPrepared) {
+            return;
+        }
+        MediaPlayer next = getNextPlayer();
+        if (next != mChainedPlayer) {
+            mMediaPlayer.setNextMediaPlayer(next);
+            mChainedPlayer = next;
+        }
+    }
+
+    /**
+     * Get the URL to play a song from, through the caching proxy when it runs.
+     */
+    private String getSource(MediaMetadata track) {
+        String source = track.getString(Common.METADATA_SOURCE);
+        return mProxy != null
+                ? mProxy.getProxyUrl(track.getString(Common.METADATA_MEDIA_ID), source) : source;
+    }
+
+    /**
+     * Take the media player away from the current song, keeping it in the pool if it may be
+     * played again soon.
+     */
+    private void parkMediaPlayer() {
+        if (mMediaPlayer == null) {
+            return;
+        }
+        if (mChainedPlayer != null) {
+            mMediaPlayer.setNextMediaPlayer(null);
+            mChainedPlayer = null;
+        }
+        if (mPlayerPrepared && mPlayingQueue.indexOfQueueId(mPlayerQueueId)
+                != PlayingQueue.NOT_FOUND) {
+            mPlayerPool.park(mPlayerQueueId, mPlayerSource, mMediaPlayer);
+        } else {
+            mMediaPlayer.release();
+        }
+        mMediaPlayer = null;
+        mPlayerPrepared = false;
+    }
+
+    /**
+     * Log the gap between the end of a song and the start of the next one.
+     * @param startedAt When the next song started, in milliseconds since boot.
+     */
+    private void onTransition(long startedAt) {
+        long gap = Math.max(startedAt - mCompletedAt, 0);
+        mCompletedAt = 0;
+        mStartedAsNextAt = 0;
+        mTransitionCount++;
+        mTransitionGapTotal += gap;
+        Log.d(TAG, "onTransition: gap=" + gap + "ms average="
+                + (mTransitionGapTotal / mTransitionCount) + "ms over " + mTransitionCount);
+    }
+
     /**
      * Handle a request to play music
      */
     private void handlePlayRequest() {
         Log.d(TAG, "handlePlayRequest: mState=" + mState);
 
+        publishQueue(false);
+
         mPlayOnFocusGain = true;
         tryToGetAudioFocus();
 
@@ -429,6 +1225,15 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
     private void handleStopRequest(String withError) {
         Log.d(TAG, "handleStopRequest: mState=" + mState + " error=" + withError);
         mState = PlaybackState.STATE_STOPPED;
+        mCompletedAt = 0;
+        mStartedAsNextAt = 0;
+
+        // continue the shuffle from here next time
+        saveShuffle();
+
+        if (mBurstDownloader != null) {
+            mBurstDownloader.cancel();
+        }
 
         // let go of all resources...
         relaxResources(true);
@@ -454,15 +1259,37 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
         stopForeground(true);
 
         // stop and release the Media Player, if it's available
+        if (releaseMediaPlayer) {
+            mChainedPlayer = null;
+            mPlayerPool.releaseAll();
+        }
         if (releaseMediaPlayer && mMediaPlayer != null) {
             mMediaPlayer.reset();
             mMediaPlayer.release();
             mMediaPlayer = null;
+            mPlayerPrepared = false;
         }
 
         // we can also release the Wifi lock, if we're holding it
+        releaseWifiLock();
+    }
+
+    private void acquireWifiLock() {
+        if (!mWifiLock.isHeld()) {
+            mWifiLock.acquire();
+            mWifiLockSince = SystemClock.elapsedRealtime();
+            mOfflineDownloader.setStreaming(true);
+        }
+    }
+
+    private void releaseWifiLock() {
         if (mWifiLock.isHeld()) {
             mWifiLock.release();
+            mWifiLockMs += SystemClock.elapsedRealtime() - mWifiLockSince;
+            mWifiLockSince = 0;
+            mOfflineDownloader.setStreaming(false);
+            Log.d(TAG, "Radio use this session: Wi-Fi lock held " + mWifiLockMs + " ms, burst "
+                    + "downloaded " + mBurstBytes + " bytes in " + mBurstMs + " ms");
         }
     }
 
@@ -494,6 +1321,9 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
                 if (!mMediaPlayer.isPlaying()) {
                     Log.d(TAG, "configAndStartMediaPlayer startMediaPlayer.");
                     mMediaPlayer.start();
+                    if (mCompletedAt != 0) {
+                        onTransition(SystemClock.elapsedRealtime());
+                    }
                 }
                 mPlayOnFocusGain = false;
                 mState = PlaybackState.STATE_PLAYING;
@@ -510,23 +1340,29 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
     private void createMediaPlayerIfNeeded() {
         Log.d(TAG, "createMediaPlayerIfNeeded. needed? " + (mMediaPlayer==null));
         if (mMediaPlayer == null) {
-            mMediaPlayer = new MediaPlayer();
-
-            // Make sure the media player will acquire a wake-lock while
-            // playing. If we don't do that, the CPU might go to sleep while the
-            // song is playing, causing playback to stop.
-            mMediaPlayer.setWakeMode(getApplicationContext(), PowerManager.PARTIAL_WAKE_LOCK);
-
-            // we want the media player to notify us when it's ready preparing,
-            // and when it's done playing:
-            mMediaPlayer.setOnPreparedListener(this);
-            mMediaPlayer.setOnCompletionListener(this);
-            mMediaPlayer.setOnErrorListener(this);
+            mMediaPlayer = newMediaPlayer();
         } else {
             mMediaPlayer.reset();
         }
     }
 
+    private MediaPlayer newMediaPlayer() {
+        MediaPlayer player = new MediaPlayer();
+
+        // Make sure the media player will acquire a wake-lock while
+        // playing. If we don't do that, the CPU might go to sleep while the
+        // song is playing, causing playback to stop.
+        player.setWakeMode(getApplicationContext(), PowerManager.PARTIAL_WAKE_LOCK);
+
+        // we want the media player to notify us when it's ready preparing,
+        // when it's done playing, and when it starts after another player:
+        player.setOnPreparedListener(this);
+        player.setOnCompletionListener(this);
+        player.setOnErrorListener(this);
+        player.setOnInfoListener(this);
+        return player;
+    }
+
     /**
      * Starts playing the current song in the playing queue.
      */
@@ -539,14 +1375,47 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
                     " playQueue.size=" + (mPlayingQueue==null?"null": mPlayingQueue.size()));
             return;
         }
-        String source = track.getString(Common.METADATA_SOURCE);
+        String source = getSource(track);
         Log.d(TAG, "playSong:  current (" + mCurrentIndexOnQueue + ") in playingQueue. " +
                 " musicId=" + track.getString(Common.METADATA_MEDIA_ID) +
                 " source=" + source);
 
+        long queueId = mPlayingQueue.get(mCurrentIndexOnQueue).getQueueId();
+        if (mMediaPlayer != null && mPlayerPrepared && queueId == mPlayerQueueId) {
+            // Start the song again
+            Log.d(TAG, "playSong: restarting the current song");
+            mMediaPlayer.seekTo(0);
+            configMediaPlayerState();
+            return;
+        }
+
         mState = PlaybackState.STATE_STOPPED;
         relaxResources(false); // release everything except MediaPlayer
 
+        // Swap in a player already prepared with the song, if there is one
+        boolean prepared = mPlayerPool.isPrepared(queueId);
+        MediaPlayer warm = mPlayerPool.take(queueId);
+        parkMediaPlayer();
+        mPlayerQueueId = queueId;
+        mPlayerSource = source;
+        if (warm != null) {
+            Log.d(TAG, "playSong: using a warm player, prepared=" + prepared);
+            mMediaPlayer = warm;
+            mState = PlaybackState.STATE_BUFFERING;
+            acquireWifiLock();
+            burstDownload();
+            updateMetadata();
+            if (prepared) {
+                mPlayerPrepared = true;
+                configMediaPlayerState();
+                warmPlayers();
+            } else {
+                // onPrepared() starts the song
+                updatePlaybackState(null);
+            }
+            return;
+        }
+
         try {
             createMediaPlayerIfNeeded();
 
@@ -572,8 +1441,9 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
 
             // If we are streaming from the internet, we want to hold a
             // Wifi lock, which prevents the Wifi radio from going to
-            // sleep while the song is playing.
-            mWifiLock.acquire();
+            // sleep while the song is playing, until the song is downloaded whole.
+            acquireWifiLock();
+            burstDownload();
 
             updatePlaybackState(null);
             updateMetadata();
@@ -587,7 +1457,7 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
 
 
     private void updateMetadata() {
-        if (!QueueHelper.isIndexPlayable(mCurrentIndexOnQueue, mPlayingQueue)) {
+        if (!mPlayingQueue.isPlayable(mCurrentIndexOnQueue)) {
             Log.e(TAG, "Can't retrieve current metadata.");
             mState = PlaybackState.STATE_ERROR;
             updatePlaybackState(getResources().getString(R.string.error_no_metadata));
@@ -653,6 +1523,10 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
             stateBuilder.addCustomAction(Common.ACTION_FAV, getString(R.string.favorite),
                     favoriteIcon);
         }
+        int burstIcon = ((Common) getApplicationContext()).isBurstDownload()
+                ? android.R.drawable.stat_sys_download_done : android.R.drawable.stat_sys_download;
+        stateBuilder.addCustomAction(Common.ACTION_BURST, getString(R.string.burst_download),
+                burstIcon);
     }
 
     private long getAvailableActions() {
@@ -674,7 +1548,7 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
     }
 
     private MediaMetadata getCurrentPlayingMusic() {
-        if (QueueHelper.isIndexPlayable(mCurrentIndexOnQueue, mPlayingQueue)) {
+        if (mPlayingQueue.isPlayable(mCurrentIndexOnQueue)) {
             MediaSession.QueueItem item = mPlayingQueue.get(mCurrentIndexOnQueue);
             if (item != null) {
                 Log.d(TAG, "getCurrentPlayingMusic for musicId=" + item.getDescription().getMediaId());
@@ -0,0 +1,346 @@
+package co.stevets.music.network;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import co.stevets.music.models.AudioCache;
+import co.stevets.music.models.CachedAudio;
+
+/**
+ * Saves songs for offline listening into their own {@link AudioCache}, which nothing is
+ * evicted from. A song is split into chunks downloaded by several connections at the same
+ * time, each with a range request, and written at their position in a file given the song's
+ * length up front.
+ *
+ * Progress survives a crash: the songs still to save are kept in a small journal, and the
+ * ranges of every song are saved after each chunk, so a resumed song only downloads the
+ * chunks it misses. The journal is read and written on a background thread of its own, so
+ * it isn't held up by the downloads. While a song is streaming, downloads are slowed down so
+ * they don't starve it.
+ */
+public class OfflineDownloader {
+
+    private static final String TAG = "OfflineDownloader";
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    // Rate of all the connections together while a song is streaming
+    private static final int STREAMING_BYTES_PER_SECOND = 64 * 1024;
+
+    private final AudioCache mSaved;
+    private final File mJournalFile;
+    private final int mConnections;
+    private final int mChunkBytes;
+
+    // Songs one at a time, and their chunks on several connections
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService mChunkExecutor;
+    // Journal reads and writes, in order
+    private final ExecutorService mJournalExecutor = Executors.newSingleThreadExecutor();
+
+    // URL of the songs still to save by media ID, in the order they were asked for, and the
+    // ones waiting for or being downloaded; a song that failed is tried again when asked for
+    private final LinkedHashMap<String, String> mPending = new LinkedHashMap<>();
+    private final HashSet<String> mQueued = new HashSet<>();
+
+    private volatile boolean mStreaming;
+    private volatile boolean mStopped;
+
+    /**
+     * @param saved         Cache the songs are saved in
+     * @param journalFile   File the songs still to save are kept in
+     * @param connections   Number of connections downloading a song at the same time.
+     * @param chunkBytes    Number of bytes downloaded by every range request.
+     */
+    public OfflineDownloader(AudioCache saved, File journalFile, int connections,
+            int chunkBytes) {
+        mSaved = saved;
+        mJournalFile = journalFile;
+        mConnections = connections;
+        mChunkBytes = chunkBytes;
+        mChunkExecutor = Executors.newFixedThreadPool(connections);
+    }
+
+    /**
+     * Start saving the songs left when the process last ended.
+     */
+    public void resume() {
+        // Runs before the journal is written again, since writes are queued after it
+        mJournalExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                readJournal();
+            }
+        });
+    }
+
+    /**
+     * Read the songs still to save, and save them. Runs on the journal thread.
+     */
+    private void readJournal() {
+        List<String[]> songs = new ArrayList<>();
+        if (mJournalFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(mJournalFile))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int space = line.indexOf(' ');
+                    if (space > 0) {
+                        songs.add(new String[] {line.substring(0, space),
+                                line.substring(space + 1)});
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to read the journal", e);
+            }
+        }
+        Log.d(TAG, "Resuming " + songs.size() + " saves");
+        for (String[] song : songs) {
+            save(song[0], song[1]);
+        }
+    }
+
+    /**
+     * Save a song for offline listening, unless it is saved already.
+     * @param mediaId   Media ID of the song
+     * @param source    URL of the song on its server
+     */
+    public void save(final String mediaId, final String source) {
+        if (!AudioCache.isValidKey(mediaId) || source == null || !source.startsWith("http")) {
+            return;
+        }
+        synchronized (mPending) {
+            if (!mQueued.add(mediaId)) {
+                return;
+            }
+            if (!source.equals(mPending.put(mediaId, source))) {
+                writeJournal();
+            }
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean saved = downloadSong(mediaId, source);
+                synchronized (mPending) {
+                    mQueued.remove(mediaId);
+                    if (saved) {
+                        mPending.remove(mediaId);
+                        writeJournal();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return  True if a song is saved whole.
+     */
+    public boolean isSaved(String mediaId) {
+        synchronized (mPending) {
+            if (mPending.containsKey(mediaId)) {
+                return false;
+            }
+        }
+        return mSaved.contains(mediaId);
+    }
+
+    /**
+     * Slow the downloads down while a song streams, or let them run at full speed.
+     */
+    public void setStreaming(boolean streaming) {
+        mStreaming = streaming;
+    }
+
+    /**
+     * Stop downloading; the songs not saved yet are resumed next time.
+     */
+    public void stop() {
+        mStopped = true;
+        mExecutor.shutdownNow();
+        mChunkExecutor.shutdownNow();
+        // Let the journal be written
+        mJournalExecutor.shutdown();
+    }
+
+    /**
+     * Download the chunks of a song not saved yet.
+     * @return  True if the song is saved whole.
+     */
+    private boolean downloadSong(String key, String source) {
+        CachedAudio audio = mSaved.open(key);
+        try {
+            if (audio.isComplete()) {
+                return true;
+            }
+            if (audio.getLength() < 0) {
+                // Ask for the first byte, to learn the length and if ranges are supported
+                HttpURLConnection connection = CachingProxy.openOrigin(source, 0, 0);
+                try {
+                    long length = CachingProxy.getOriginLength(connection);
+                    if (length < 0) {
+                        throw new IOException("Unknown length for " + source);
+                    }
+                    audio.setLength(length, connection.getContentType(),
+                            connection.getResponseCode() == HttpURLConnection.HTTP_PARTIAL);
+                } finally {
+                    connection.disconnect();
+                }
+            }
+            audio.preallocate();
+
+            // The missing bytes of every chunk; a server without ranges, or that didn't
+            // answer them when the song was last saved, sends the whole song
+            boolean ranges = audio.acceptsRanges();
+            long length = audio.getLength();
+            List<Future<Long>> chunks = new ArrayList<>();
+            if (!ranges) {
+                chunks.add(mChunkExecutor.submit(newChunk(audio, source, 0, length)));
+            } else {
+                for (long start = 0; start < length; start += mChunkBytes) {
+                    long end = Math.min(start + mChunkBytes, length);
+                    long position = audio.getCachedEnd(start);
+                    while (position < end) {
+                        long gapEnd = Math.min(audio.getNextCachedStart(position), end);
+                        chunks.add(mChunkExecutor.submit(newChunk(audio, source, position,
+                                gapEnd)));
+                        position = audio.getCachedEnd(gapEnd);
+                    }
+                }
+            }
+            // Wait for every chunk, even after one failed, as they all write to the song
+            long downloaded = 0;
+            ExecutionException failure = null;
+            for (Future<Long> chunk : chunks) {
+                try {
+                    downloaded += chunk.get();
+                } catch (ExecutionException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            Log.d(TAG, "Saved " + key + " in " + chunks.size() + " chunks, downloaded "
+                    + downloaded);
+            return audio.isComplete();
+        } catch (IOException | ExecutionException e) {
+            Log.w(TAG, "Failed to save " + key + ", resuming later: " + e);
+            return false;
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Stopped saving " + key);
+            return false;
+        } finally {
+            audio.save();
+            mSaved.release(audio);
+        }
+    }
+
+    /**
+     * @return  A task downloading bytes of a song, from start included to end excluded, that
+     *          returns the number of bytes downloaded.
+     */
+    private Callable<Long> newChunk(final CachedAudio audio, final String source,
+            final long start, final long end) {
+        return new Callable<Long>() {
+            @Override
+            public Long call() throws IOException, InterruptedException {
+                HttpURLConnection connection = CachingProxy.openOrigin(source, start, end - 1);
+                long downloaded = 0;
+                try {
+                    // A server that ignores ranges sends the song from its start
+                    boolean partial =
+                            connection.getResponseCode() == HttpURLConnection.HTTP_PARTIAL;
+                    if (!partial && start > 0) {
+                        // Every chunk would download the song from its start; save it as a
+                        // single chunk on the next attempt
+                        audio.setLength(audio.getLength(), audio.getContentType(), false);
+                        throw new IOException("Range request ignored for " + source);
+                    }
+                    long position = partial ? start : 0;
+                    InputStream origin = connection.getInputStream();
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    while (position < end && !mStopped) {
+                        int count = origin.read(buffer, 0,
+                                (int) Math.min(buffer.length, end - position));
+                        if (count < 0) {
+                            throw new IOException("Download of " + source + " ended early");
+                        }
+                        audio.write(position, buffer, 0, count);
+                        position += count;
+                        downloaded += count;
+                        if (mStreaming) {
+                            // Leave the bandwidth to the song streaming
+                            Thread.sleep(1000L * count * mConnections
+                                    / STREAMING_BYTES_PER_SECOND);
+                        }
+                    }
+                } finally {
+                    connection.disconnect();
+                    // Progress so far, for a resume after a crash
+                    audio.save();
+                }
+                return downloaded;
+            }
+        };
+    }
+
+    /**
+     * Write the songs still to save, one "mediaId source" per line. The lines are taken now,
+     * while holding the lock of mPending, and written on the journal thread.
+     */
+    private void writeJournal() {
+        final List<String> lines = new ArrayList<>(mPending.size());
+        for (Map.Entry<String, String> song : mPending.entrySet()) {
+            lines.add(song.getKey() + " " + song.getValue());
+        }
+        try {
+            mJournalExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    replaceJournal(lines);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Stopped; the songs saved since are in the caches anyway
+            Log.d(TAG, "Not writing the journal, stopped");
+        }
+    }
+
+    /**
+     * Replace the journal with lines. Runs on the journal thread.
+     */
+    private void replaceJournal(List<String> lines) {
+        File temp = new File(mJournalFile.getPath() + ".tmp");
+        try (Writer writer = new BufferedWriter(new FileWriter(temp))) {
+            for (String line : lines) {
+                writer.write(line + "\n");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write the journal", e);
+            return;
+        }
+        if (!temp.renameTo(mJournalFile)) {
+            Log.e(TAG, "Failed to replace the journal");
+        }
+    }
+
+}
@@ -0,0 +1,317 @@
+package co.stevets.music.network;
+
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Pool of media players prepared with the songs around the current one, so skipping to them
+ * only swaps players. Players are kept by the queue ID of their song. Every player holds a
+ * decoder and may hold connections to the song's server, so the pool keeps a limited number
+ * of players, prepares a limited number at a time, and stays within a budget of connections:
+ * no player is prepared while the players of the pool hold the budget, and the least wanted
+ * players are released when they hold more. Songs that leave the pool's window have their
+ * players released.
+ *
+ * Used from the main thread, which the players call back on.
+ */
+public class PlayerPool {
+
+    private static final String TAG = "PlayerPool";
+
+    /**
+     * Creates the players of the pool, with the listeners of the service.
+     */
+    public interface Factory {
+        MediaPlayer newMediaPlayer();
+    }
+
+    /**
+     * Counts the connections to songs' servers held for players.
+     */
+    public interface Budget {
+        /**
+         * @param source    URL a player plays a song from.
+         * @return          Number of connections held for it, or -1 if the player connects
+         *                  to the song's server itself.
+         */
+        int getConnections(String source);
+    }
+
+    private final Factory mFactory;
+    private final Budget mBudget;
+    private final int mMaxPlayers;
+    private final int mMaxPreparing;
+    private final int mMaxConnections;
+
+    // Players by queue ID, in the order they were asked for
+    private final LinkedHashMap<Long, Entry> mEntries = new LinkedHashMap<>();
+
+    /**
+     * @param factory           Creates players
+     * @param budget            Counts the connections held by players
+     * @param maxPlayers        Maximum number of players kept.
+     * @param maxPreparing      Maximum number of players preparing at the same time.
+     * @param maxConnections    Maximum number of connections held by the players kept.
+     */
+    public PlayerPool(Factory factory, Budget budget, int maxPlayers, int maxPreparing,
+                      int maxConnections) {
+        mFactory = factory;
+        mBudget = budget;
+        mMaxPlayers = maxPlayers;
+        mMaxPreparing = maxPreparing;
+        mMaxConnections = maxConnections;
+    }
+
+    /**
+     * Keep players for the songs asked for, and release the others. Songs without a player get
+     * one, in order, as preparations finish.
+     * @param queueIds  Queue IDs of the songs, most wanted first.
+     * @param sources   URLs of the songs
+     */
+    public void warm(long[] queueIds, String[] sources) {
+        int count = Math.min(queueIds.length, mMaxPlayers);
+        HashSet<Long> wanted = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            wanted.add(queueIds[i]);
+        }
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (!wanted.contains(entry.mQueueId)) {
+                Log.d(TAG, "warm: releasing player of queueId=" + entry.mQueueId);
+                entry.release();
+                iterator.remove();
+            }
+        }
+
+        // Rebuild the order so songs still waiting for a player get one by priority
+        LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            Entry entry = mEntries.get(queueIds[i]);
+            entries.put(queueIds[i], entry != null ? entry : new Entry(queueIds[i], sources[i]));
+        }
+        mEntries.clear();
+        mEntries.putAll(entries);
+        trimConnections();
+        startPreparing();
+    }
+
+    /**
+     * @return  True if there is a prepared player for a song.
+     */
+    public boolean isPrepared(long queueId) {
+        Entry entry = mEntries.get(queueId);
+        return entry != null && entry.mPrepared;
+    }
+
+    /**
+     * Get the prepared player of a song, which stays in the pool.
+     * @return  The player, or null if there is none or it is still preparing.
+     */
+    public MediaPlayer getPrepared(long queueId) {
+        Entry entry = mEntries.get(queueId);
+        return entry != null && entry.mPrepared ? entry.mPlayer : null;
+    }
+
+    /**
+     * Take the player of a song out of the pool, prepared or still preparing.
+     * @return  The player, or null if the song has none.
+     */
+    public MediaPlayer take(long queueId) {
+        Entry entry = mEntries.get(queueId);
+        if (entry == null || entry.mPlayer == null) {
+            return null;
+        }
+        mEntries.remove(queueId);
+        startPreparing();
+        return entry.mPlayer;
+    }
+
+    /**
+     * Put back a prepared player that was playing, rewound so the song can start again at once.
+     * It is released on the next {@link #warm} if its song isn't wanted.
+     * @param source    URL the player plays the song from.
+     */
+    public void park(long queueId, String source, MediaPlayer player) {
+        if (player.isPlaying()) {
+            player.pause();
+        }
+        player.seekTo(0);
+        Entry old = mEntries.remove(queueId);
+        if (old != null) {
+            old.release();
+        }
+        Entry entry = new Entry(queueId, source);
+        entry.mPlayer = player;
+        entry.mPrepared = true;
+        mEntries.put(queueId, entry);
+    }
+
+    /**
+     * Record that a player is prepared.
+     * @return  True if the player is in the pool, false otherwise.
+     */
+    public boolean onPrepared(MediaPlayer player) {
+        Entry entry = find(player);
+        if (entry == null) {
+            return false;
+        }
+        Log.d(TAG, "onPrepared: queueId=" + entry.mQueueId);
+        entry.mPrepared = true;
+        startPreparing();
+        return true;
+    }
+
+    /**
+     * Release a player that failed.
+     * @return  True if the player was in the pool, false otherwise.
+     */
+    public boolean onError(MediaPlayer player) {
+        Entry entry = find(player);
+        if (entry == null) {
+            return false;
+        }
+        Log.e(TAG, "onError: releasing player of queueId=" + entry.mQueueId);
+        mEntries.remove(entry.mQueueId);
+        entry.release();
+        startPreparing();
+        return true;
+    }
+
+    /**
+     * Release every player.
+     */
+    public void releaseAll() {
+        for (Entry entry : mEntries.values()) {
+            entry.release();
+        }
+        mEntries.clear();
+    }
+
+    private Entry find(MediaPlayer player) {
+        for (Entry entry : mEntries.values()) {
+            if (entry.mPlayer == player) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the number of connections held by the players of the pool.
+     */
+    private int getConnections() {
+        int connections = 0;
+        for (Entry entry : mEntries.values()) {
+            connections += entry.getConnections();
+        }
+        return connections;
+    }
+
+    /**
+     * Release the players of the least wanted songs while the pool holds more connections than
+     * its budget. Their songs get a player again once connections are freed.
+     */
+    private void trimConnections() {
+        int connections = getConnections();
+        if (connections <= mMaxConnections) {
+            return;
+        }
+        List<Entry> entries = new ArrayList<>(mEntries.values());
+        for (int i = entries.size() - 1; i >= 0 && connections > mMaxConnections; i--) {
+            Entry entry = entries.get(i);
+            int held = entry.getConnections();
+            if (held > 0) {
+                Log.d(TAG, "trimConnections: releasing player of queueId=" + entry.mQueueId
+                        + ", " + connections + " connections held");
+                entry.release();
+                connections -= held;
+            }
+        }
+    }
+
+    /**
+     * Start preparing the songs waiting for a player, as long as few players are preparing and
+     * the connection budget isn't spent.
+     */
+    private void startPreparing() {
+        int connections = getConnections();
+        int preparing = 0;
+        List<Entry> waiting = new ArrayList<>();
+        for (Entry entry : mEntries.values()) {
+            if (entry.mPlayer == null) {
+                waiting.add(entry);
+            } else if (!entry.mPrepared) {
+                preparing++;
+            }
+        }
+        for (Entry entry : waiting) {
+            if (preparing >= mMaxPreparing || connections >= mMaxConnections) {
+                break;
+            }
+            if (entry.prepare()) {
+                preparing++;
+                // The player connects once it starts preparing
+                connections++;
+            } else {
+                mEntries.remove(entry.mQueueId);
+            }
+        }
+    }
+
+    private final class Entry {
+        final long mQueueId;
+        final String mSource;
+        MediaPlayer mPlayer;
+        boolean mPrepared;
+
+        Entry(long queueId, String source) {
+            mQueueId = queueId;
+            mSource = source;
+        }
+
+        boolean prepare() {
+            Log.d(TAG, "prepare: queueId=" + mQueueId + " source=" + mSource);
+            mPlayer = mFactory.newMediaPlayer();
+            try {
+                mPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+                mPlayer.setDataSource(mSource);
+                mPlayer.prepareAsync();
+                return true;
+            } catch (IOException ex) {
+                Log.e(TAG, "IOException preparing queueId=" + mQueueId + ": " + ex);
+                release();
+                return false;
+            }
+        }
+
+        /**
+         * @return  Number of connections held by the player.
+         */
+        int getConnections() {
+            if (mPlayer == null) {
+                return 0;
+            }
+            int connections = mBudget.getConnections(mSource);
+            // A player streaming from the song's server holds its own connection
+            return connections >= 0 ? connections : 1;
+        }
+
+        void release() {
+            if (mPlayer != null) {
+                mPlayer.release();
+                mPlayer = null;
+            }
+            mPrepared = false;
+        }
+    }
+
+}
@@ -0,0 +1,110 @@
+package co.stevets.music.utils;
+
+import java.util.Random;
+
+/**
+ * Samples indexes in proportion to their weights in constant time, using Vose's alias method.
+ * Building the table takes O(n); every slot holds its own index and an alias, and a sample
+ * picks a slot uniformly, then either of the two with the slot's probability.
+ *
+ * The table is immutable once built, so it can be sampled from any thread.
+ */
+public class AliasTable {
+
+    private final double[] mProbabilities;
+    private final int[] mAliases;
+    private final double mTotalWeight;
+
+    /**
+     * @param weights   Weight of every index, none of them negative.
+     */
+    public AliasTable(double[] weights) {
+        int n = weights.length;
+        mProbabilities = new double[n];
+        mAliases = new int[n];
+
+        double total = 0;
+        for (double weight : weights) {
+            total += weight;
+        }
+        mTotalWeight = total;
+        if (n == 0) {
+            return;
+        }
+        if (total <= 0) {
+            // Nothing to prefer, sample uniformly
+            for (int i = 0; i < n; i++) {
+                mProbabilities[i] = 1;
+                mAliases[i] = i;
+            }
+            return;
+        }
+
+        // Scale the weights so that the average is 1, and split them into small and large
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int smallCount = 0;
+        int largeCount = 0;
+        for (int i = 0; i < n; i++) {
+            scaled[i] = weights[i] * n / total;
+            if (scaled[i] < 1) {
+                small[smallCount++] = i;
+            } else {
+                large[largeCount++] = i;
+            }
+        }
+
+        // Fill every small slot up to 1 with part of a large one
+        while (smallCount > 0 && largeCount > 0) {
+            int less = small[--smallCount];
+            int more = large[--largeCount];
+            mProbabilities[less] = scaled[less];
+            mAliases[less] = more;
+            scaled[more] = (scaled[more] + scaled[less]) - 1;
+            if (scaled[more] < 1) {
+                small[smallCount++] = more;
+            } else {
+                large[largeCount++] = more;
+            }
+        }
+
+        // What is left is 1 up to rounding errors
+        while (largeCount > 0) {
+            int i = large[--largeCount];
+            mProbabilities[i] = 1;
+            mAliases[i] = i;
+        }
+        while (smallCount > 0) {
+            int i = small[--smallCount];
+            mProbabilities[i] = 1;
+            mAliases[i] = i;
+        }
+    }
+
+    /**
+     * Pick an index in proportion to its weight.
+     * @param random    Source of randomness
+     * @return          The index, or -1 if the table is empty.
+     */
+    public int sample(Random random) {
+        int n = mProbabilities.length;
+        if (n == 0) {
+            return -1;
+        }
+        int slot = random.nextInt(n);
+        return random.nextDouble() < mProbabilities[slot] ? slot : mAliases[slot];
+    }
+
+    public int size() {
+        return mProbabilities.length;
+    }
+
+    /**
+     * @return  Sum of the weights the table was built with.
+     */
+    public double getTotalWeight() {
+        return mTotalWeight;
+    }
+
+}
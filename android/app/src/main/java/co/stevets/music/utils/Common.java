@@ -6,7 +6,17 @@ import android.content.SharedPreferences;
 import android.media.MediaMetadata;
 import android.media.session.MediaSession;
 
+import java.io.File;
+import java.util.Collections;
+import java.util.Set;
+
+import co.stevets.music.models.AudioCache;
 import co.stevets.music.models.MusicProvider;
+import co.stevets.music.models.Recommender;
+import co.stevets.music.models.ShuffleWeight;
+import co.stevets.music.models.SkipPredictor;
+import co.stevets.music.network.CatalogLoader;
+import co.stevets.music.network.OfflineDownloader;
 
 
 public class Common extends Application {
@@ -18,6 +28,8 @@ public class Common extends Application {
     public static final String METADATA_TITLE           = MediaMetadata.METADATA_KEY_TITLE;
     public static final String METADATA_DURATION        = MediaMetadata.METADATA_KEY_DURATION;
     public static final String METADATA_ALBUM_ART_URL   = MediaMetadata.METADATA_KEY_ALBUM_ART_URI;
+    public static final String METADATA_DATE_POSTED     = "__DATE_POSTED__";
+    public static final String METADATA_LOVED_COUNT     = "__LOVED_COUNT__";
 
     // Media player actions
     public static final String ACTION_PAUSE = "co.stevets.music.pause";
@@ -26,12 +38,81 @@ public class Common extends Application {
     public static final String ACTION_NEXT  = "co.stevets.music.next";
     public static final String ACTION_FAV   = "co.stevets.music.fav";
 
+    // Queue editing actions, and the extras they take
+    public static final String ACTION_ENQUEUE   = "co.stevets.music.enqueue";
+    public static final String ACTION_PLAY_NEXT = "co.stevets.music.play_next";
+    public static final String ACTION_REMOVE    = "co.stevets.music.remove";
+    public static final String ACTION_MOVE      = "co.stevets.music.move";
+    public static final String EXTRA_MEDIA_ID   = "co.stevets.music.MEDIA_ID";
+    public static final String EXTRA_QUEUE_ID   = "co.stevets.music.QUEUE_ID";
+    // Queue ID of the song whose index a moved song takes; controllers only see part of the
+    // queue, so they can't know absolute indexes
+    public static final String EXTRA_TARGET_QUEUE_ID = "co.stevets.music.TARGET_QUEUE_ID";
+
+    // Saves a song for offline listening: the one in EXTRA_MEDIA_ID, or the current one
+    public static final String ACTION_SAVE = "co.stevets.music.save";
+
+    // Turns downloading whole songs at once, on unmetered networks, on or off
+    public static final String ACTION_BURST = "co.stevets.music.burst";
+
+    // Preferences
+    public static final String PREF_SHUFFLE_WEIGHT = "shuffle_weight";
+    public static final String PREF_SHUFFLE_SEED = "shuffle_seed";
+    public static final String PREF_SHUFFLE_EPOCH_START = "shuffle_epoch_start";
+    public static final String PREF_SHUFFLE_EPOCH_SIZE = "shuffle_epoch_size";
+    public static final String PREF_SHUFFLE_POSITION = "shuffle_position";
+    public static final String PREF_SHUFFLE_LAST_DRAWN = "shuffle_last_drawn";
+    public static final String PREF_SHUFFLE_UNPLAYED = "shuffle_unplayed";
+    public static final String PREF_BURST_DOWNLOAD = "burst_download";
+    public static final String PREF_FAVORITES = "favorites";
+
+    // Name of the catalog snapshot file
+    private static final String CATALOG_SNAPSHOT = "catalog.snapshot";
+
+    // Name of the file what the recommender learnt is saved in
+    private static final String RECOMMENDER = "recommender";
+
+    // Name of the directory songs are cached in
+    private static final String AUDIO_CACHE = "audio";
+
+    // Budget of the song cache, in bytes; favourites are kept beyond it
+    private static final long AUDIO_CACHE_MAX_BYTES = 256L * 1024 * 1024;
+
+    // Name of the directory songs are saved in for offline listening, and of the journal of
+    // the songs still to save
+    private static final String SAVED_AUDIO = "saved";
+    private static final String SAVE_JOURNAL = "saves";
+
+    // Number of connections saving a song at the same time, and bytes downloaded by each range
+    // request
+    private static final int SAVE_CONNECTIONS = 4;
+    private static final int SAVE_CHUNK_BYTES = 512 * 1024;
+
+    // Maximum number of Hype Machine pages downloaded at the same time
+    private static final int MAX_PAGES_IN_FLIGHT = 3;
+
     // Context.
     private Context mContext;
 
     // Music catalog manager
     private MusicProvider mMusicProvider;
 
+    // Downloads pages into the music catalog
+    private CatalogLoader mCatalogLoader;
+
+    // Learns which songs go together from what is played
+    private Recommender mRecommender;
+
+    // Learns which songs get skipped
+    private SkipPredictor mSkipPredictor;
+
+    // Songs cached on disk as they stream
+    private AudioCache mAudioCache;
+
+    // Songs saved for offline listening, which are never evicted, and their downloads
+    private AudioCache mSavedAudio;
+    private OfflineDownloader mOfflineDownloader;
+
     // Shared preferences.
     private SharedPreferences mSharedPreferences;
 
@@ -45,20 +126,96 @@ public class Common extends Application {
         // Context
         mContext = getApplicationContext();
 
-        // Music catalog
+        // Shared preferences
+        mSharedPreferences = this.getSharedPreferences("co.stevets.music", Context.MODE_PRIVATE);
+
+        // Music catalog, starting with the songs of the previous session
         mMusicProvider = new MusicProvider();
+        mMusicProvider.setShuffleWeight(getShuffleWeight());
+        mMusicProvider.loadSnapshot(getCatalogSnapshotFile());
+        mCatalogLoader = new CatalogLoader(mMusicProvider, MAX_PAGES_IN_FLIGHT);
+        mRecommender = new Recommender(mMusicProvider, new File(getFilesDir(), RECOMMENDER));
+        mSkipPredictor = new SkipPredictor(mMusicProvider);
+        mAudioCache = new AudioCache(new File(getCacheDir(), AUDIO_CACHE),
+                AUDIO_CACHE_MAX_BYTES);
+        mSavedAudio = new AudioCache(new File(getFilesDir(), SAVED_AUDIO), Long.MAX_VALUE);
+        mOfflineDownloader = new OfflineDownloader(mSavedAudio,
+                new File(getFilesDir(), SAVE_JOURNAL), SAVE_CONNECTIONS, SAVE_CHUNK_BYTES);
+        mOfflineDownloader.resume();
+        restoreFavorites();
 
         // Media session
         mSession = new MediaSession(this, "MusicService");
-
-        // Shared preferences
-        mSharedPreferences = this.getSharedPreferences("co.stevets.music", Context.MODE_PRIVATE);
     }
 
     public SharedPreferences getSharedPreferences() {
         return mSharedPreferences;
     }
 
+    /**
+     * Get how often songs come up when shuffling, all songs equally by default.
+     */
+    public ShuffleWeight getShuffleWeight() {
+        String name = mSharedPreferences.getString(PREF_SHUFFLE_WEIGHT, null);
+        if (name != null) {
+            try {
+                return ShuffleWeight.valueOf(name);
+            } catch (IllegalArgumentException e) {
+                // Saved by another version of the app, use the default
+            }
+        }
+        return ShuffleWeight.UNIFORM;
+    }
+
+    /**
+     * Change how often songs come up when shuffling. Applies to the next shuffled queue.
+     * @param weight    Weight of every song
+     */
+    public void setShuffleWeight(ShuffleWeight weight) {
+        mSharedPreferences.edit().putString(PREF_SHUFFLE_WEIGHT, weight.name()).apply();
+        mMusicProvider.setShuffleWeight(weight);
+    }
+
+    /**
+     * Add or remove a song from favourites, which are kept cached whatever else is played.
+     * @param mediaId   Song ID
+     * @param favorite  True to add the song to favourites, false to remove it.
+     */
+    public void setFavorite(String mediaId, boolean favorite) {
+        mMusicProvider.setFavorite(mediaId, favorite);
+        mAudioCache.setPinned(mediaId, favorite);
+        mSharedPreferences.edit()
+                .putStringSet(PREF_FAVORITES, mMusicProvider.getFavorites()).apply();
+    }
+
+    /**
+     * Load the favourites of the previous sessions, and pin them in the cache.
+     */
+    private void restoreFavorites() {
+        Set<String> favorites =
+                mSharedPreferences.getStringSet(PREF_FAVORITES, Collections.<String>emptySet());
+        for (String mediaId : favorites) {
+            mMusicProvider.setFavorite(mediaId, true);
+            mAudioCache.setPinned(mediaId, true);
+        }
+    }
+
+    /**
+     * Check if songs are downloaded whole as they start, off by default. They are only on
+     * unmetered networks.
+     */
+    public boolean isBurstDownload() {
+        return mSharedPreferences.getBoolean(PREF_BURST_DOWNLOAD, false);
+    }
+
+    /**
+     * Turn downloading whole songs as they start on or off.
+     * @param burst True to download songs whole
+     */
+    public void setBurstDownload(boolean burst) {
+        mSharedPreferences.edit().putBoolean(PREF_BURST_DOWNLOAD, burst).apply();
+    }
+
     /**
      * Converts milliseconds to hh:mm:ss format.
      */
@@ -100,10 +257,38 @@ public class Common extends Application {
         return output;
     }
 
+    public File getCatalogSnapshotFile() {
+        return new File(getFilesDir(), CATALOG_SNAPSHOT);
+    }
+
     public MusicProvider getProvider() {
         return mMusicProvider;
     }
 
+    public CatalogLoader getCatalogLoader() {
+        return mCatalogLoader;
+    }
+
+    public Recommender getRecommender() {
+        return mRecommender;
+    }
+
+    public SkipPredictor getSkipPredictor() {
+        return mSkipPredictor;
+    }
+
+    public AudioCache getAudioCache() {
+        return mAudioCache;
+    }
+
+    public AudioCache getSavedAudio() {
+        return mSavedAudio;
+    }
+
+    public OfflineDownloader getOfflineDownloader() {
+        return mOfflineDownloader;
+    }
+
     public MediaSession getSession() {
         return mSession;
     }
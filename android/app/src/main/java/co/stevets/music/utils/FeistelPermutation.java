@@ -0,0 +1,80 @@
+package co.stevets.music.utils;
+
+/**
+ * Pseudo-random permutation of [0, size), keyed by a seed. Maps a position to the value at
+ * that position in O(1) without storing the permutation, so a shuffle of any size costs
+ * nothing to build and is reproduced from the seed and a position alone.
+ *
+ * A balanced Feistel network permutes the smallest power of 4 that holds size; values
+ * outside [0, size) are encrypted again (cycle walking) until they fall inside, which takes
+ * fewer than 4 rounds on average.
+ */
+public class FeistelPermutation {
+
+    private static final int ROUNDS = 4;
+
+    private final int mSize;
+    private final int mHalfBits;
+    private final long mHalfMask;
+    private final long[] mKeys = new long[ROUNDS];
+
+    /**
+     * @param size  Number of values to permute.
+     * @param seed  Key of the permutation.
+     */
+    public FeistelPermutation(int size, long seed) {
+        mSize = size;
+        int bits = 2;
+        while (bits < 32 && (1L << bits) < size) {
+            bits += 2;
+        }
+        mHalfBits = bits / 2;
+        mHalfMask = (1L << mHalfBits) - 1;
+        long key = seed;
+        for (int i = 0; i < ROUNDS; i++) {
+            key = mix(key + 0x9e3779b97f4a7c15L);
+            mKeys[i] = key;
+        }
+    }
+
+    /**
+     * Get the value at a position of the permutation.
+     * @param position  Position, in [0, size).
+     * @return          Value at the position, in [0, size).
+     */
+    public int get(int position) {
+        if (position < 0 || position >= mSize) {
+            throw new IndexOutOfBoundsException("position=" + position + " size=" + mSize);
+        }
+        long value = position;
+        do {
+            value = encrypt(value);
+        } while (value >= mSize);
+        return (int) value;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    private long encrypt(long value) {
+        long left = value >>> mHalfBits;
+        long right = value & mHalfMask;
+        for (long key : mKeys) {
+            long next = left ^ (mix(right ^ key) & mHalfMask);
+            left = right;
+            right = next;
+        }
+        return (left << mHalfBits) | right;
+    }
+
+    /**
+     * Finalizer of the SplitMix64 generator, a fast 64-bit mixing function.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+}
@@ -0,0 +1,50 @@
+package co.stevets.music.utils;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive ints.
+ *
+ * Values are only ever appended, so one thread can add values while other threads read the
+ * first {@link #size()} values of the array returned by {@link #array()}, taken while that was
+ * the size: growing copies into a new array and never touches the old one.
+ */
+public class IntArrayList {
+
+    private int[] mValues;
+    private int mSize;
+
+    public IntArrayList() {
+        this(8);
+    }
+
+    public IntArrayList(int capacity) {
+        mValues = new int[Math.max(capacity, 1)];
+    }
+
+    public void add(int value) {
+        if (mSize == mValues.length) {
+            mValues = Arrays.copyOf(mValues, mSize << 1);
+        }
+        mValues[mSize++] = value;
+    }
+
+    public int get(int index) {
+        if (index >= mSize) {
+            throw new IndexOutOfBoundsException("index=" + index + " size=" + mSize);
+        }
+        return mValues[index];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return  The backing array. Only the first {@link #size()} values are used.
+     */
+    public int[] array() {
+        return mValues;
+    }
+
+}
@@ -0,0 +1,127 @@
+package co.stevets.music.utils;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Hash map from primitive long keys to non-negative int values, using open addressing with
+ * linear probing. Nothing is boxed and lookups don't allocate.
+ *
+ * Entries are never removed. This lets one writer add entries while other threads read: a
+ * reader sees every entry that was added before the map was safely published to it, and may or
+ * may not see entries that are being added at the same time. Values are written and read as
+ * volatile, after and before the key of their slot, so a reader that sees a value also sees
+ * its key.
+ */
+public class LongIntHashMap {
+
+    public static final int NO_VALUE = -1;
+
+    private static final int MIN_CAPACITY = 16;
+
+    // Replaced as a whole when the map grows, so readers always see matching keys and values
+    private volatile Table mTable;
+    private int mSize;
+
+    public LongIntHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize  Number of entries the map should hold without resizing.
+     */
+    public LongIntHashMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        mTable = new Table(capacity);
+    }
+
+    /**
+     * Get the value stored for a key.
+     * @param key   Key
+     * @return      The value, or {@link #NO_VALUE} if the key isn't in the map.
+     */
+    public int get(long key) {
+        Table table = mTable;
+        int mask = table.mKeys.length - 1;
+        for (int i = slot(key, mask); table.mValues.get(i) != 0; i = (i + 1) & mask) {
+            if (table.mKeys[i] == key) {
+                return table.mValues.get(i) - 1;
+            }
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * Store a value for a key, replacing the previous value. Only one thread may call this at
+     * a time.
+     * @param key   Key
+     * @param value Value, must not be negative.
+     */
+    public void put(long key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("value < 0: " + value);
+        }
+        Table table = mTable;
+        int mask = table.mKeys.length - 1;
+        int i = slot(key, mask);
+        for (; table.mValues.get(i) != 0; i = (i + 1) & mask) {
+            if (table.mKeys[i] == key) {
+                table.mValues.set(i, value + 1);
+                return;
+            }
+        }
+        // Write the key before the value: a slot is only used once its value is set, and the
+        // volatile write of the value publishes the key
+        table.mKeys[i] = key;
+        table.mValues.set(i, value + 1);
+        if (++mSize > table.mKeys.length * 3 / 4) {
+            resize(table.mKeys.length << 1);
+        }
+    }
+
+    /**
+     * @return  Number of entries in the map.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    private void resize(int capacity) {
+        Table old = mTable;
+        Table table = new Table(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < old.mKeys.length; j++) {
+            if (old.mValues.get(j) != 0) {
+                int i = slot(old.mKeys[j], mask);
+                while (table.mValues.get(i) != 0) {
+                    i = (i + 1) & mask;
+                }
+                table.mKeys[i] = old.mKeys[j];
+                table.mValues.set(i, old.mValues.get(j));
+            }
+        }
+        mTable = table;
+    }
+
+    private static int slot(long key, int mask) {
+        // Mix the bits (MurmurHash3 finalizer) so sequential IDs don't cluster
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key & mask;
+    }
+
+    private static final class Table {
+        final long[] mKeys;
+        // Values are stored plus one, so that 0 marks an empty slot
+        final AtomicIntegerArray mValues;
+
+        Table(int capacity) {
+            mKeys = new long[capacity];
+            mValues = new AtomicIntegerArray(capacity);
+        }
+    }
+
+}
@@ -0,0 +1,388 @@
+package co.stevets.music.utils;
+
+import android.media.MediaDescription;
+import android.media.session.MediaSession;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Editable "now playing" queue. Items are kept in an implicit treap, a randomly balanced
+ * binary tree ordered by position where every node knows the size of its subtree, so getting,
+ * adding, removing and moving the item at any index take O(log n). Every node also knows its
+ * parent and the node of every queue ID is kept in a map, so the index of an item is found in
+ * O(log n) by walking up from its node. Queue IDs never change while an item is on the queue.
+ *
+ * Like the list it replaces, the queue is only used from the main thread.
+ */
+public class PlayingQueue extends AbstractList<MediaSession.QueueItem> {
+
+    public static final int NOT_FOUND = -1;
+
+    private final Random mRandom = new Random();
+    private Node mRoot;
+
+    private final HashMap<Long, Node> mNodesByQueueId = new HashMap<>();
+    // Nodes of every media ID; a song may be on the queue more than once
+    private final HashMap<String, List<Node>> mNodesByMediaId = new HashMap<>();
+
+    // Queue ID of the next item created by the queue, higher than any ID it has seen
+    private long mNextQueueId;
+
+    public PlayingQueue() {
+    }
+
+    public PlayingQueue(Collection<MediaSession.QueueItem> items) {
+        Node root = null;
+        for (MediaSession.QueueItem item : items) {
+            root = merge(root, register(new Node(item, mRandom.nextInt())));
+        }
+        setRoot(root);
+    }
+
+    @Override
+    public MediaSession.QueueItem get(int index) {
+        return nodeAt(index).mItem;
+    }
+
+    @Override
+    public int size() {
+        return size(mRoot);
+    }
+
+    @Override
+    public MediaSession.QueueItem set(int index, MediaSession.QueueItem item) {
+        Node node = nodeAt(index);
+        MediaSession.QueueItem old = node.mItem;
+        unregister(node);
+        node.mItem = item;
+        register(node);
+        return old;
+    }
+
+    @Override
+    public void add(int index, MediaSession.QueueItem item) {
+        checkPosition(index);
+        Node[] parts = split(mRoot, index);
+        setRoot(merge(merge(parts[0], register(new Node(item, mRandom.nextInt()))), parts[1]));
+        modCount++;
+    }
+
+    /**
+     * Add a song with a queue ID that no item of the queue has had.
+     * @param index         Index of the new item
+     * @param description   Description of the song
+     * @return              The new item.
+     */
+    public MediaSession.QueueItem add(int index, MediaDescription description) {
+        MediaSession.QueueItem item = new MediaSession.QueueItem(description, mNextQueueId);
+        add(index, item);
+        return item;
+    }
+
+    @Override
+    public MediaSession.QueueItem remove(int index) {
+        checkIndex(index);
+        Node[] parts = split(mRoot, index);
+        Node[] rest = split(parts[1], 1);
+        setRoot(merge(parts[0], rest[1]));
+        unregister(rest[0]);
+        modCount++;
+        return rest[0].mItem;
+    }
+
+    /**
+     * Move an item to another index. The item keeps its queue ID.
+     * @param from  Index of the item
+     * @param to    Index of the item once moved.
+     */
+    public void move(int from, int to) {
+        checkIndex(from);
+        checkIndex(to);
+        Node[] parts = split(mRoot, from);
+        Node[] rest = split(parts[1], 1);
+        Node[] others = split(merge(parts[0], rest[1]), to);
+        setRoot(merge(merge(others[0], rest[0]), others[1]));
+        modCount++;
+    }
+
+    @Override
+    public void clear() {
+        mRoot = null;
+        mNodesByQueueId.clear();
+        mNodesByMediaId.clear();
+        modCount++;
+    }
+
+    /**
+     * Replace the items from an index to the end of the queue, e.g. to reorder them.
+     * @param from  Index of the first item replaced.
+     * @param items New items
+     */
+    public void replaceFrom(int from, Collection<MediaSession.QueueItem> items) {
+        checkPosition(from);
+        Node[] parts = split(mRoot, from);
+        unregisterAll(parts[1]);
+        Node tail = null;
+        for (MediaSession.QueueItem item : items) {
+            tail = merge(tail, register(new Node(item, mRandom.nextInt())));
+        }
+        setRoot(merge(parts[0], tail));
+        modCount++;
+    }
+
+    /**
+     * Get the index of an item.
+     * @param queueId   The item's queue ID
+     * @return          The index of the item, or {@link #NOT_FOUND}.
+     */
+    public int indexOfQueueId(long queueId) {
+        Node node = mNodesByQueueId.get(queueId);
+        return node == null ? NOT_FOUND : rank(node);
+    }
+
+    /**
+     * Get the index of the first item of a song.
+     * @param mediaId   The song ID
+     * @return          The index of the item, or {@link #NOT_FOUND}.
+     */
+    public int indexOfMediaId(String mediaId) {
+        List<Node> nodes = mNodesByMediaId.get(mediaId);
+        if (nodes == null) {
+            return NOT_FOUND;
+        }
+        int first = NOT_FOUND;
+        for (Node node : nodes) {
+            int index = rank(node);
+            if (first == NOT_FOUND || index < first) {
+                first = index;
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Check if there is an item at an index.
+     * @param index Index of the item
+     * @return      True if there is an item at the index, false otherwise.
+     */
+    public boolean isPlayable(int index) {
+        return index >= 0 && index < size();
+    }
+
+    @Override
+    public Iterator<MediaSession.QueueItem> iterator() {
+        // Walk the tree in order rather than looking up every index from the root
+        final int expectedModCount = modCount;
+        final ArrayList<Node> stack = new ArrayList<>();
+        for (Node node = mRoot; node != null; node = node.mLeft) {
+            stack.add(node);
+        }
+        return new Iterator<MediaSession.QueueItem>() {
+            @Override
+            public boolean hasNext() {
+                return !stack.isEmpty();
+            }
+
+            @Override
+            public MediaSession.QueueItem next() {
+                if (modCount != expectedModCount) {
+                    throw new ConcurrentModificationException();
+                }
+                if (stack.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                Node node = stack.remove(stack.size() - 1);
+                for (Node child = node.mRight; child != null; child = child.mLeft) {
+                    stack.add(child);
+                }
+                return node.mItem;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private Node register(Node node) {
+        long queueId = node.mItem.getQueueId();
+        mNodesByQueueId.put(queueId, node);
+        mNextQueueId = Math.max(mNextQueueId, queueId + 1);
+        String mediaId = node.mItem.getDescription().getMediaId();
+        if (mediaId != null) {
+            List<Node> nodes = mNodesByMediaId.get(mediaId);
+            if (nodes == null) {
+                nodes = new ArrayList<>(1);
+                mNodesByMediaId.put(mediaId, nodes);
+            }
+            nodes.add(node);
+        }
+        return node;
+    }
+
+    private void unregister(Node node) {
+        long queueId = node.mItem.getQueueId();
+        if (mNodesByQueueId.get(queueId) == node) {
+            mNodesByQueueId.remove(queueId);
+        }
+        String mediaId = node.mItem.getDescription().getMediaId();
+        List<Node> nodes = mediaId == null ? null : mNodesByMediaId.get(mediaId);
+        if (nodes != null) {
+            nodes.remove(node);
+            if (nodes.isEmpty()) {
+                mNodesByMediaId.remove(mediaId);
+            }
+        }
+    }
+
+    /**
+     * Unregister every node of a tree that was cut from the queue.
+     */
+    private void unregisterAll(Node root) {
+        ArrayList<Node> stack = new ArrayList<>();
+        if (root != null) {
+            stack.add(root);
+        }
+        while (!stack.isEmpty()) {
+            Node node = stack.remove(stack.size() - 1);
+            unregister(node);
+            if (node.mLeft != null) {
+                stack.add(node.mLeft);
+            }
+            if (node.mRight != null) {
+                stack.add(node.mRight);
+            }
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("index=" + index + " size=" + size());
+        }
+    }
+
+    private void checkPosition(int index) {
+        if (index < 0 || index > size()) {
+            throw new IndexOutOfBoundsException("index=" + index + " size=" + size());
+        }
+    }
+
+    private static final class Node {
+        MediaSession.QueueItem mItem;
+        final int mPriority;
+        int mSize = 1;
+        Node mLeft;
+        Node mRight;
+        Node mParent;
+
+        Node(MediaSession.QueueItem item, int priority) {
+            mItem = item;
+            mPriority = priority;
+        }
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.mSize;
+    }
+
+    private void setRoot(Node root) {
+        mRoot = root;
+        if (root != null) {
+            root.mParent = null;
+        }
+    }
+
+    /**
+     * Recompute the size of a node and point its children back at it.
+     */
+    private static Node update(Node node) {
+        node.mSize = 1 + size(node.mLeft) + size(node.mRight);
+        if (node.mLeft != null) {
+            node.mLeft.mParent = node;
+        }
+        if (node.mRight != null) {
+            node.mRight.mParent = node;
+        }
+        return node;
+    }
+
+    /**
+     * Split a tree into its first count nodes and the rest.
+     */
+    private static Node[] split(Node node, int count) {
+        if (node == null) {
+            return new Node[2];
+        }
+        Node[] parts;
+        if (size(node.mLeft) >= count) {
+            parts = split(node.mLeft, count);
+            node.mLeft = parts[1];
+            parts[1] = update(node);
+        } else {
+            parts = split(node.mRight, count - size(node.mLeft) - 1);
+            node.mRight = parts[0];
+            parts[0] = update(node);
+        }
+        if (parts[0] != null) {
+            parts[0].mParent = null;
+        }
+        if (parts[1] != null) {
+            parts[1].mParent = null;
+        }
+        return parts;
+    }
+
+    /**
+     * Join two trees, the nodes of the first one coming first.
+     */
+    private static Node merge(Node left, Node right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.mPriority > right.mPriority) {
+            left.mRight = merge(left.mRight, right);
+            return update(left);
+        }
+        right.mLeft = merge(left, right.mLeft);
+        return update(right);
+    }
+
+    private Node nodeAt(int index) {
+        checkIndex(index);
+        Node node = mRoot;
+        while (true) {
+            int left = size(node.mLeft);
+            if (index < left) {
+                node = node.mLeft;
+            } else if (index == left) {
+                return node;
+            } else {
+                index -= left + 1;
+                node = node.mRight;
+            }
+        }
+    }
+
+    private static int rank(Node node) {
+        int rank = size(node.mLeft);
+        for (Node child = node; child.mParent != null; child = child.mParent) {
+            if (child == child.mParent.mRight) {
+                rank += size(child.mParent.mLeft) + 1;
+            }
+        }
+        return rank;
+    }
+
+}
@@ -1,14 +1,18 @@
 package co.stevets.music.utils;
 
-import android.media.MediaMetadata;
+import android.media.MediaDescription;
 import android.media.session.MediaSession;
+import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
 
 import co.stevets.music.models.MusicProvider;
+import co.stevets.music.models.Recommender;
+import co.stevets.music.models.ShuffleWeight;
+import co.stevets.music.models.SkipPredictor;
 
 /**
  * The queue helper helps work with data needed for the Media Player.
@@ -17,14 +21,23 @@ public class QueueHelper {
 
     private static final String TAG = "QueueHelper";
 
+    // Maximum number of songs on a queue built from a search
+    private static final int MAX_SEARCH_RESULTS = 100;
+
+    // How much a certain skip lowers the rank of a song, in units of affinity
+    private static final float SKIP_PENALTY = 1f;
+
     /**
-     * Get the music index on the queue.
+     * Get the music index on the queue. Constant time for a {@link PlayingQueue}.
      * @param queue     The queue of songs
      * @param mediaId   The song ID
      * @return  The music index on the queue.
      */
     public static final int getMusicIndexOnQueue(Iterable<MediaSession.QueueItem> queue,
                                                  String mediaId) {
+        if (queue instanceof PlayingQueue) {
+            return ((PlayingQueue) queue).indexOfMediaId(mediaId);
+        }
         int index = 0;
         for (MediaSession.QueueItem item: queue) {
             if (mediaId.equals(item.getDescription().getMediaId())) {
@@ -36,13 +49,16 @@ public class QueueHelper {
     }
 
     /**
-     * Get the music index on the queue.
+     * Get the music index on the queue. Constant time for a {@link PlayingQueue}.
      * @param queue     The queue of songs
      * @param queueId   The item's queue ID
      * @return  The music index on the queue.
      */
     public static final int getMusicIndexOnQueue(Iterable<MediaSession.QueueItem> queue,
                                                  long queueId) {
+        if (queue instanceof PlayingQueue) {
+            return ((PlayingQueue) queue).indexOfQueueId(queueId);
+        }
         int index = 0;
         for (MediaSession.QueueItem item: queue) {
             if (queueId == item.getQueueId()) {
@@ -58,17 +74,78 @@ public class QueueHelper {
      * @param musicProvider Music provider
      * @return  A random queue of media session queue items.
      */
-    public static final List<MediaSession.QueueItem> getRandomQueue(MusicProvider musicProvider) {
-        Iterator<String> pages = musicProvider.getPages().iterator();
-        if (!pages.hasNext()) {
-            return new ArrayList<>();
+    public static final PlayingQueue getRandomQueue(MusicProvider musicProvider) {
+        if (musicProvider.hasNetworkCatalog()
+                && musicProvider.getShuffleWeight() != ShuffleWeight.UNIFORM) {
+            // Popular songs first, more or less
+            return convertToQueue(musicProvider.getWeightedShuffle(new Random()), false);
+        }
+
+        // Shuffle the songs of every page that has been downloaded
+        List<MediaDescription> tracks = new ArrayList<>();
+        for (String page : musicProvider.getPages()) {
+            for (MediaDescription track : musicProvider.getDescriptionsByPage(page)) {
+                tracks.add(track);
+            }
+        }
+
+        return convertToQueue(tracks, true);
+    }
+
+    /**
+     * Create a queue from the songs matching a search, best match first.
+     * @param query         Words to search in the title and artist of songs.
+     * @param musicProvider Music provider
+     * @return  A queue of the matching songs, empty if none match.
+     */
+    public static final PlayingQueue getPlayingQueueFromSearch(
+            String query, MusicProvider musicProvider) {
+        List<MediaDescription> tracks = musicProvider.searchMusic(query, MAX_SEARCH_RESULTS);
+        Log.d(TAG, "getPlayingQueueFromSearch. query=" + query + " results=" + tracks.size());
+        return convertToQueue(tracks, false);
+    }
+
+    /**
+     * Reorder the end of a queue, e.g. the songs just drawn onto it, so the songs most like
+     * what was liked recently come first, and songs likely to be skipped come last. Songs with
+     * equal scores keep their order.
+     * @param queue         The queue of songs
+     * @param from          Index of the first song that may move.
+     * @param recommender   Recommender
+     * @param skipPredictor Skip predictor
+     * @param budgetNanos   Time allowed for scoring, in nanoseconds.
+     */
+    public static final void rerankQueue(PlayingQueue queue, int from, Recommender recommender,
+                                         SkipPredictor skipPredictor, long budgetNanos) {
+        if (from < 0 || from >= queue.size() - 1) {
+            return;
+        }
+        List<MediaSession.QueueItem> items = queue.subList(from, queue.size());
+        List<String> mediaIds = new ArrayList<>(items.size());
+        for (MediaSession.QueueItem item : items) {
+            mediaIds.add(item.getDescription().getMediaId());
+        }
+        float[] scores = recommender.score(mediaIds, budgetNanos);
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] -= SKIP_PENALTY * skipPredictor.predict(mediaIds.get(i));
         }
 
-        // TODO: For simplicity only use the first page
-        String page = pages.next();
-        Iterable<MediaMetadata> tracks = musicProvider.getMusicsByPage(page);
+        // Stable insertion sort of the positions by score, best first; only a few songs are
+        // drawn at a time
+        int[] order = new int[scores.length];
+        for (int i = 0; i < order.length; i++) {
+            int j = i - 1;
+            for (; j >= 0 && scores[order[j]] < scores[i]; j--) {
+                order[j + 1] = order[j];
+            }
+            order[j + 1] = i;
+        }
 
-        return convertToQueue(tracks);
+        List<MediaSession.QueueItem> reranked = new ArrayList<>(order.length);
+        for (int position : order) {
+            reranked.add(items.get(position));
+        }
+        queue.replaceFrom(from, reranked);
     }
 
     /**
@@ -82,22 +159,25 @@ public class QueueHelper {
     }
 
     /**
-     * Convert an iterator over media metadata to a random queue.
+     * Convert an iterator over media descriptions to a queue.
      * @param tracks    Iterator of tracks
-     * @return  A random queue of tracks.
+     * @param shuffle   True to shuffle the tracks, false to keep their order.
+     * @return  A queue of tracks.
      */
-    private static final List<MediaSession.QueueItem> convertToQueue(Iterable<MediaMetadata> tracks) {
+    private static final PlayingQueue convertToQueue(
+            Iterable<MediaDescription> tracks, boolean shuffle) {
         List<MediaSession.QueueItem> queue = new ArrayList<>();
         int count = 0;
-        for (MediaMetadata track : tracks) {
-            // We don't expect queues to change after created, so we use the item index as the
-            // queueId. Any other number unique in the queue would work.
-            MediaSession.QueueItem item = new MediaSession.QueueItem(
-                    track.getDescription(), count++);
+        for (MediaDescription track : tracks) {
+            // Any number unique in the queue works as the queueId; songs added to the queue
+            // later get IDs above these from the queue itself.
+            MediaSession.QueueItem item = new MediaSession.QueueItem(track, count++);
             queue.add(item);
         }
-        Collections.shuffle(queue);
-        return queue;
+        if (shuffle) {
+            Collections.shuffle(queue);
+        }
+        return new PlayingQueue(queue);
 
     }
 
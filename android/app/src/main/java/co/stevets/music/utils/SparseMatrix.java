@@ -0,0 +1,142 @@
+package co.stevets.music.utils;
+
+import java.util.Arrays;
+
+/**
+ * Square sparse matrix of floats, stored row by row as sorted column and value arrays. Every
+ * row keeps at most a fixed number of entries; when a row is full, adding an entry replaces
+ * the smallest one if the new value is at least as large.
+ *
+ * One thread at a time may {@link #add} to the matrix. Rows are replaced rather than changed
+ * in place, so any thread can {@link #get} values while another thread adds.
+ */
+public class SparseMatrix {
+
+    private final int mMaxEntriesPerRow;
+    private volatile Row[] mRows = new Row[64];
+
+    /**
+     * @param maxEntriesPerRow  Maximum number of entries kept in every row.
+     */
+    public SparseMatrix(int maxEntriesPerRow) {
+        mMaxEntriesPerRow = maxEntriesPerRow;
+    }
+
+    /**
+     * Add to the value of an entry.
+     * @param row       Row
+     * @param column    Column
+     * @param delta     Value to add
+     */
+    public void add(int row, int column, float delta) {
+        Row[] rows = mRows;
+        if (row >= rows.length) {
+            rows = Arrays.copyOf(rows, Math.max(rows.length << 1, row + 1));
+        }
+        Row old = rows[row];
+        rows[row] = old == null
+                ? new Row(new int[] {column}, new float[] {delta}) : old.with(column, delta);
+        // Publish the array again so readers see the new row
+        mRows = rows;
+    }
+
+    /**
+     * Get the value of an entry.
+     * @return  The value, or 0 if the entry isn't stored.
+     */
+    public float get(int row, int column) {
+        Row[] rows = mRows;
+        if (row < 0 || row >= rows.length || rows[row] == null) {
+            return 0;
+        }
+        Row entries = rows[row];
+        int index = Arrays.binarySearch(entries.mColumns, column);
+        return index >= 0 ? entries.mValues[index] : 0;
+    }
+
+    /**
+     * @return  Number of entries stored in a row.
+     */
+    public int getEntryCount(int row) {
+        Row[] rows = mRows;
+        return row >= 0 && row < rows.length && rows[row] != null
+                ? rows[row].mColumns.length : 0;
+    }
+
+    /**
+     * @return  Column of an entry of a row, entries being in order of column.
+     */
+    public int getColumn(int row, int index) {
+        return mRows[row].mColumns[index];
+    }
+
+    /**
+     * @return  Value of an entry of a row, entries being in order of column.
+     */
+    public float getValue(int row, int index) {
+        return mRows[row].mValues[index];
+    }
+
+    private final class Row {
+        final int[] mColumns;
+        final float[] mValues;
+
+        Row(int[] columns, float[] values) {
+            mColumns = columns;
+            mValues = values;
+        }
+
+        Row with(int column, float delta) {
+            int index = Arrays.binarySearch(mColumns, column);
+            if (index >= 0) {
+                float[] values = mValues.clone();
+                values[index] += delta;
+                return new Row(mColumns, values);
+            }
+
+            int[] columns = mColumns;
+            float[] values = mValues;
+            if (columns.length >= mMaxEntriesPerRow) {
+                // Make room by dropping the smallest entry, unless the new one is smaller
+                int smallest = 0;
+                for (int i = 1; i < values.length; i++) {
+                    if (values[i] < values[smallest]) {
+                        smallest = i;
+                    }
+                }
+                if (values[smallest] > delta) {
+                    return this;
+                }
+                columns = remove(columns, smallest);
+                values = remove(values, smallest);
+                index = Arrays.binarySearch(columns, column);
+            }
+
+            int insert = -index - 1;
+            int[] newColumns = new int[columns.length + 1];
+            float[] newValues = new float[values.length + 1];
+            System.arraycopy(columns, 0, newColumns, 0, insert);
+            System.arraycopy(values, 0, newValues, 0, insert);
+            newColumns[insert] = column;
+            newValues[insert] = delta;
+            System.arraycopy(columns, insert, newColumns, insert + 1, columns.length - insert);
+            System.arraycopy(values, insert, newValues, insert + 1, values.length - insert);
+            return new Row(newColumns, newValues);
+        }
+    }
+
+    private static int[] remove(int[] array, int index) {
+        int[] result = new int[array.length - 1];
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, result.length - index);
+        return result;
+    }
+
+    private static float[] remove(float[] array, int index) {
+        float[] result = new float[array.length - 1];
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, result.length - index);
+        return result;
+    }
+
+}
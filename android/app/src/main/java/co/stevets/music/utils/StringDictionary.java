@@ -0,0 +1,72 @@
+package co.stevets.music.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps repeated strings (artist names, URL prefixes) to small int codes, so that each distinct
+ * string is only kept in memory once.
+ *
+ * One thread at a time may {@link #encode} strings. Codes never change once assigned, so any
+ * thread can {@link #decode} the codes it has been given, or {@link #find} the code of a string.
+ */
+public class StringDictionary {
+
+    public static final int NO_STRING = -1;
+
+    private final ConcurrentHashMap<String, Integer> mCodes = new ConcurrentHashMap<>();
+    private volatile String[] mStrings = new String[16];
+    private int mSize;
+
+    /**
+     * Get the code of a string, adding it to the dictionary if needed.
+     * @param value String, may be null.
+     * @return      The code of the string, or {@link #NO_STRING} if it is null.
+     */
+    public int encode(String value) {
+        if (value == null) {
+            return NO_STRING;
+        }
+        Integer code = mCodes.get(value);
+        if (code == null) {
+            String[] strings = mStrings;
+            if (mSize == strings.length) {
+                strings = Arrays.copyOf(strings, mSize << 1);
+            }
+            strings[mSize] = value;
+            code = mSize++;
+            // Publish the array again so readers see the new string, before they can find it
+            mStrings = strings;
+            mCodes.put(value, code);
+        }
+        return code;
+    }
+
+    /**
+     * Get the code of a string without adding it.
+     * @param value String, may be null.
+     * @return      The code of the string, or {@link #NO_STRING} if it isn't in the dictionary.
+     */
+    public int find(String value) {
+        Integer code = value == null ? null : mCodes.get(value);
+        return code == null ? NO_STRING : code;
+    }
+
+    /**
+     * Get the string of a code.
+     * @param code  Code returned by {@link #encode}.
+     * @return      The string, or null for {@link #NO_STRING}.
+     */
+    public String decode(int code) {
+        String[] strings = mStrings;
+        return code >= 0 && code < strings.length ? strings[code] : null;
+    }
+
+    /**
+     * @return  Number of distinct strings in the dictionary.
+     */
+    public int size() {
+        return mSize;
+    }
+
+}